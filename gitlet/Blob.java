@@ -1,33 +1,74 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
- * A blob object that contains content and a filename.
+ * A blob object that contains the raw bytes of one version of a file.
+ * Blobs are addressed by their content alone; the file name a blob is
+ * stored under lives only in the manifest of the commit tracking it.
+ *
+ * Files are checked out and hashed by streaming them through a small
+ * buffer, so a file never has to fit in memory. Files big enough for
+ * that to matter are added as chunks; smaller ones are read whole.
  * @author Yu Xi Gui
  */
-public class Blob implements Serializable {
-    /**The filename of the blob.*/
-    private String _filename;
+public class Blob {
+    /**The size of the buffer files are streamed through.*/
+    static final int BUFFER = 1 << 16;
+
     /**The content in the blob.*/
-    private String _content;
-    /**The hash or id of the blob.*/
+    private byte[] _content;
+    /**The hash or id of the blob, or null until asked for.*/
     private String _blobName;
 
     /**
      * Constructor for Blob object.
-     * @param fileName A string representing the filename.
-     * @param content A string that contains content.
+     * @param content The bytes of the file.
      */
-    public Blob(String fileName, String content) {
-        _filename = fileName;
+    public Blob(byte[] content) {
         _content = content;
-        _blobName = Utils.sha1("Blob" + _filename + _content);
+    }
 
+    /**
+     * Writes this blob into an encoding: the content, prefixed by its
+     * length. The id is not written, being the hash of the content.
+     * @param out Where to write.
+     */
+    void encode(Codec.Out out) {
+        out.writeData(_content);
+    }
+
+    /**
+     * Reads a blob written by encode.
+     * @param in Where to read.
+     * @param version The format version of the encoding.
+     * @return The blob.
+     */
+    static Blob decode(Codec.In in, int version) {
+        if (version < 2) {
+            in.readId();
+        }
+        return new Blob(in.readData());
+    }
+
+    /**
+     * Returns the id a blob holding CONTENT would have, without
+     * building the blob.
+     * @param content The bytes of a file.
+     * @return A string of the SHA1 of the content.
+     */
+    public static String idOf(byte[] content) {
+        return Utils.sha1("blob", content);
     }
 
     /**
@@ -35,27 +76,161 @@ public class Blob implements Serializable {
      * @return A string of the blobname instance variable.
      */
     public String getBlobname() {
+        if (_blobName == null) {
+            _blobName = idOf(_content);
+        }
         return _blobName;
     }
 
     /**
      * A method that gets the blob content.
-     * @return A string of the blob content.
+     * @return The bytes of the blob.
      */
-    public String getContent() {
+    public byte[] getContent() {
         return _content;
     }
 
     /**
-     * Returns the file name of the blob.
-     * @return A string.
+     * Returns the id the given file would have as a blob, reading it
+     * one buffer at a time.
+     * @param file The file.
+     * @return A string of the SHA1 of its content.
+     * @throws IOException
+     */
+    static String hashFile(Path file) throws IOException {
+        MessageDigest md = digest();
+        byte[] buf = new byte[BUFFER];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                md.update(buf, 0, n);
+            }
+        }
+        return Pack.toHex(md.digest());
+    }
+
+    /**
+     * Stores the given file as a blob in a folder of the given gitlet
+     * directory. Files of at least Chunks.THRESHOLD bytes are stored as
+     * chunk lists; smaller ones are read whole and compressed, and go
+     * to the store with no staging copy.
+     * @param gitlet The gitlet directory.
+     * @param folder The folder to store the blob in.
+     * @param file The file.
+     * @return The id of the blob.
+     * @throws IOException
+     */
+    static String store(String gitlet, String folder, Path file)
+            throws IOException {
+        if (Files.size(file) >= Chunks.THRESHOLD) {
+            return Chunks.store(gitlet, folder, file);
+        }
+        Blob blob = new Blob(Files.readAllBytes(file));
+        String id = blob.getBlobname();
+        ObjectStore store = ObjectStore.of(gitlet);
+        if (!store.freshen(folder, id)) {
+            store.write(folder, id, Main.encode(blob, true));
+        }
+        return id;
+    }
+
+    /**
+     * Writes the content of a stored blob to a file, streaming it out
+     * of the store.
+     * @param gitlet The gitlet directory.
+     * @param folder The folder of the blob.
+     * @param id The id of the blob.
+     * @param dest The file to write.
+     * @throws IOException
+     */
+    static void writeTo(String gitlet, String folder, String id, Path dest)
+            throws IOException {
+        if (!ObjectStore.of(gitlet).has(folder, id)) {
+            throw new IOException("No blob " + id);
+        }
+        if (dest.getParent() != null) {
+            Files.createDirectories(dest.getParent());
+        }
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(dest), BUFFER)) {
+            copyContent(gitlet, folder, id, out);
+        }
+    }
+
+    /**
+     * Returns the content of a stored blob. Only meant for blobs known
+     * to be small enough to hold in memory.
+     * @param gitlet The gitlet directory.
+     * @param id The id of the blob.
+     * @return The bytes.
+     * @throws IOException
      */
-    public String getFilename() {
-        return _filename;
+    static byte[] contentOf(String gitlet, String id) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copyContent(gitlet, ".blobs", id, out);
+        return out.toByteArray();
     }
 
     /**
-     * Copies the Blob to the other repo if not there.
+     * Streams the content of a stored blob, whole or chunked, to OUT.
+     * @param gitlet The gitlet directory.
+     * @param folder The folder of the blob.
+     * @param id The id of the blob.
+     * @param out Where to write.
+     * @throws IOException
+     */
+    private static void copyContent(String gitlet, String folder, String id,
+                                    OutputStream out) throws IOException {
+        try (InputStream in = ObjectStore.of(gitlet)
+                .openEncoding(folder, id)) {
+            if (in == null) {
+                throw new IOException("No blob " + id);
+            }
+            int[] version = new int[1];
+            int kind = Codec.readHeader(in, version);
+            if (kind == Codec.CHUNKS) {
+                Chunks chunks = Chunks.decode(new Codec.In(in.readAllBytes()));
+                for (String chunk : chunks.getIds()) {
+                    copyContent(gitlet, Chunks.FOLDER, chunk, out);
+                }
+                return;
+            } else if (kind != Codec.BLOB) {
+                throw new IOException(id + " is not a blob");
+            } else if (version[0] < 2) {
+                in.skipNBytes(Codec.readVarint(in));
+            }
+            long size = Codec.readVarint(in);
+            byte[] buf = new byte[BUFFER];
+            while (size > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, size));
+                if (n < 0) {
+                    throw new EOFException("truncated blob " + id);
+                }
+                out.write(buf, 0, n);
+                size -= n;
+            }
+        }
+    }
+
+    /**
+     * Returns a digest primed the way idOf hashes, so that streaming a
+     * file through it gives the id of its blob.
+     * @return The digest.
+     */
+    static MessageDigest digest() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update("blob".getBytes(StandardCharsets.UTF_8));
+            return md;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(
+                    "System does not support SHA-1");
+        }
+    }
+
+    /**
+     * Copies the Blob to the other repo if not there, with its chunks
+     * if it is chunked. The chunks go first, so a repository never has
+     * a chunk list whose chunks it lacks.
      * @param to The place to copy to
      * @param from Where the blob exists.
      * @param id The ID.
@@ -63,12 +238,15 @@ public class Blob implements Serializable {
      */
     public static void copyFile(String to, String from, String id)
             throws IOException {
-        Path to1 = Paths.get(to, ".blobs",
-                id);
-        Path from1 = Paths.get(from, ".blobs",
-                id);
-        if (!Files.exists(to1)) {
-            Files.copy(from1, to1);
+        if (ObjectStore.of(to).freshen(".blobs", id)) {
+            return;
+        }
+        Chunks chunks = Chunks.read(from, ".blobs", id);
+        if (chunks != null) {
+            for (String chunk : chunks.getIds()) {
+                Main.copyObject(to, from, Chunks.FOLDER, chunk);
+            }
         }
+        Main.copyObject(to, from, ".blobs", id);
     }
 }
@@ -0,0 +1,224 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The blob of a big file, stored as the list of the chunks its content
+ * is cut into. Cuts are placed where a rolling hash of the last bytes
+ * read matches a mask, as in FastCDC, so they depend on the content
+ * around them and not on their offset: an edit moves the cuts only
+ * near it, and every other chunk keeps its id. Chunks are stored once,
+ * as ordinary blobs, and shared by every version of every file holding
+ * them.
+ *
+ * A chunk list is kept under the id the whole file would have as a
+ * plain blob, so whether a file is chunked never changes its id.
+ *
+ * Files are chunked from 1MB up, or from the size given by the
+ * gitlet.chunks.threshold property, which lets tests chunk small
+ * files. Run with -Dgitlet.chunks.stats=true, add prints to the
+ * standard error how much of each chunked file it hashed, how fast,
+ * and how much of it was already stored.
+ * @author Yu Xi Gui
+ */
+class Chunks {
+    /**The folder chunks are stored in.*/
+    static final String FOLDER = ".blobs";
+    /**The property giving the smallest file chunked, in bytes.*/
+    static final String THRESHOLD_PROPERTY = "gitlet.chunks.threshold";
+    /**The property asking for the hashing figures to be printed.*/
+    static final String STATS = "gitlet.chunks.stats";
+    /**The smallest file that is chunked.*/
+    static final long THRESHOLD =
+            Math.max(Long.getLong(THRESHOLD_PROPERTY, 1L << 20), 1);
+    /**The smallest chunk, except at the end of a file.*/
+    static final int MIN = 16 << 10;
+    /**The size chunks are aimed at.*/
+    static final int AVG = 64 << 10;
+    /**The biggest chunk.*/
+    static final int MAX = 256 << 10;
+    /**The mask tried before AVG bytes, harder to match than 1 in AVG.*/
+    private static final long MASK_S = -1L << (64 - 18);
+    /**The mask tried after AVG bytes, easier to match than 1 in AVG.*/
+    private static final long MASK_L = -1L << (64 - 14);
+    /**The random value each byte adds to the rolling hash. The seed is
+     * fixed, since changing it would change every cut.*/
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**The size of the whole file.*/
+    private long _size;
+    /**The ids of the chunks, in order.*/
+    private ArrayList<String> _ids = new ArrayList<>();
+    /**The lengths of the chunks, in order.*/
+    private ArrayList<Integer> _lengths = new ArrayList<>();
+
+    /**
+     * Writes this list into an encoding.
+     * @param out Where to write.
+     */
+    void encode(Codec.Out out) {
+        out.writeVarint(_size);
+        out.writeVarint(_ids.size());
+        for (int i = 0; i < _ids.size(); i += 1) {
+            out.writeId(_ids.get(i));
+            out.writeVarint(_lengths.get(i));
+        }
+    }
+
+    /**
+     * Reads a list written by encode.
+     * @param in Where to read.
+     * @return The list.
+     */
+    static Chunks decode(Codec.In in) {
+        Chunks c = new Chunks();
+        c._size = in.readVarint();
+        int n = (int) in.readVarint();
+        for (int i = 0; i < n; i += 1) {
+            c._ids.add(in.readId());
+            c._lengths.add((int) in.readVarint());
+        }
+        return c;
+    }
+
+    /**
+     * Returns the ids of the chunks, in order.
+     * @return The ids.
+     */
+    List<String> getIds() {
+        return _ids;
+    }
+
+    /**
+     * Reads the chunk list stored under the given blob id.
+     * @param gitlet The gitlet directory.
+     * @param folder The folder of the blob.
+     * @param id The id of the blob.
+     * @return The list, or null if the blob is stored whole.
+     * @throws IOException
+     */
+    static Chunks read(String gitlet, String folder, String id)
+            throws IOException {
+        ObjectStore store = ObjectStore.of(gitlet);
+        if (!store.isChunks(folder, id)) {
+            return null;
+        }
+        try (InputStream in = store.openEncoding(folder, id)) {
+            if (in == null || Codec.readHeader(in, new int[1])
+                    != Codec.CHUNKS) {
+                return null;
+            }
+            return decode(new Codec.In(in.readAllBytes()));
+        }
+    }
+
+    /**
+     * Cuts the given file into chunks and stores those not stored yet,
+     * then stores the list of them in a folder of the given gitlet
+     * directory. Reports how much was hashed, how fast, and how much of
+     * it was already stored, if asked for by the gitlet.chunks.stats
+     * property.
+     * @param gitlet The gitlet directory.
+     * @param folder The folder to store the list in.
+     * @param file The file.
+     * @return The id of the file's blob.
+     * @throws IOException
+     */
+    static String store(String gitlet, String folder, Path file)
+            throws IOException {
+        long start = System.nanoTime();
+        MessageDigest whole = Blob.digest();
+        Chunks list = new Chunks();
+        long reused = 0;
+        byte[] buf = new byte[MAX];
+        int n = 0;
+        boolean eof = false;
+        try (InputStream in = Files.newInputStream(file)) {
+            while (true) {
+                while (!eof && n < buf.length) {
+                    int r = in.read(buf, n, buf.length - n);
+                    if (r < 0) {
+                        eof = true;
+                    } else {
+                        n += r;
+                    }
+                }
+                if (n == 0) {
+                    break;
+                }
+                int length = cut(buf, n);
+                byte[] chunk = Arrays.copyOf(buf, length);
+                whole.update(chunk);
+                String id = Blob.idOf(chunk);
+                if (ObjectStore.of(gitlet).freshen(FOLDER, id)) {
+                    reused += length;
+                } else {
+                    Main.writeFile(FOLDER, id, new Blob(chunk));
+                }
+                list._ids.add(id);
+                list._lengths.add(length);
+                list._size += length;
+                System.arraycopy(buf, length, buf, 0, n - length);
+                n -= length;
+            }
+        }
+        String id = Pack.toHex(whole.digest());
+        Main.writeFile(folder, id, list);
+        if (Boolean.getBoolean(STATS)) {
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            double mb = list._size / (double) (1 << 20);
+            System.err.println(String.format("%s: %d chunks, %.1f MB "
+                    + "hashed at %.1f MB/s, %.1f%% already stored.",
+                    file.getFileName(), list._ids.size(), mb, mb / seconds,
+                    100.0 * reused / Math.max(list._size, 1)));
+        }
+        return id;
+    }
+
+    /**
+     * Returns where the first chunk of BUF[0..N) ends. No cut is looked
+     * for in the first MIN bytes; up to AVG bytes the harder mask is
+     * used and after it the easier one, which keeps chunk sizes close
+     * to AVG.
+     * @param buf The bytes.
+     * @param n How many bytes of BUF are filled.
+     * @return The length of the chunk.
+     */
+    static int cut(byte[] buf, int n) {
+        if (n <= MIN) {
+            return n;
+        }
+        int normal = Math.min(n, AVG);
+        int limit = Math.min(n, MAX);
+        long h = 0;
+        int i = MIN;
+        for (; i < normal; i += 1) {
+            h = (h << 1) + GEAR[buf[i] & 0xff];
+            if ((h & MASK_S) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i += 1) {
+            h = (h << 1) + GEAR[buf[i] & 0xff];
+            if ((h & MASK_L) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
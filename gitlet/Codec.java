@@ -0,0 +1,361 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The binary format gitlet stores its objects and state in. Every
+ * encoding starts with a magic byte, a byte telling what kind of object
+ * follows and a format version. Numbers are varints, strings are UTF-8
+ * prefixed by their length, ids are their 20 raw bytes, and maps are
+ * written in key order so that equal maps always encode the same way.
+ * @author Yu Xi Gui
+ */
+class Codec {
+    /**The first byte of every encoding. It differs from the first byte
+     * of a zlib stream, so compressed and plain encodings are told apart.*/
+    static final int MAGIC = 'G';
+    /**The format version written. Version 1 blobs also held their id.*/
+    static final int VERSION = 2;
+    /**The kind byte of a blob.*/
+    static final int BLOB = 'b';
+    /**The kind byte of a commit.*/
+    static final int COMMIT = 'c';
+    /**The kind byte of a commit tree.*/
+    static final int TREE = 't';
+    /**The kind byte of a stage.*/
+    static final int STAGE = 's';
+    /**The kind byte of a tree of files.*/
+    static final int FILES = 'd';
+    /**The kind byte of the chunk list of a big file.*/
+    static final int CHUNKS = 'k';
+
+    /**
+     * Encodes one of gitlet's objects.
+     * @param obj A Blob, Chunks, Commit, Tree, CommitTree or Stage.
+     * @return The encoding.
+     */
+    static byte[] encode(Object obj) {
+        Out out = new Out();
+        if (obj instanceof Blob) {
+            out.header(BLOB);
+            ((Blob) obj).encode(out);
+        } else if (obj instanceof Commit) {
+            out.header(COMMIT);
+            ((Commit) obj).encode(out);
+        } else if (obj instanceof CommitTree) {
+            out.header(TREE);
+            ((CommitTree) obj).encode(out);
+        } else if (obj instanceof Stage) {
+            out.header(STAGE);
+            ((Stage) obj).encode(out);
+        } else if (obj instanceof Tree) {
+            out.header(FILES);
+            ((Tree) obj).encode(out);
+        } else if (obj instanceof Chunks) {
+            out.header(CHUNKS);
+            ((Chunks) obj).encode(out);
+        } else {
+            throw new IllegalArgumentException("cannot encode " + obj);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes an encoding made by encode.
+     * @param data The encoding.
+     * @return The object.
+     */
+    static Object decode(byte[] data) {
+        In in = new In(data);
+        if (Legacy.is(data)) {
+            throw new IllegalArgumentException("Repository written by an "
+                    + "older gitlet; run a command in it to upgrade it.");
+        } else if (in.readByte() != MAGIC) {
+            throw new IllegalArgumentException("not a gitlet object");
+        }
+        int kind = in.readByte();
+        int version = in.readByte();
+        if (version > VERSION) {
+            throw new IllegalArgumentException("unknown format version "
+                    + version);
+        }
+        switch (kind) {
+        case BLOB:
+            return Blob.decode(in, version);
+        case COMMIT:
+            return Commit.decode(in);
+        case TREE:
+            return CommitTree.decode(in);
+        case STAGE:
+            return Stage.decode(in);
+        case FILES:
+            return Tree.decode(in);
+        case CHUNKS:
+            return Chunks.decode(in);
+        default:
+            throw new IllegalArgumentException("unknown object kind "
+                    + kind);
+        }
+    }
+
+    /**
+     * Writes the header of an encoding to a stream, for objects too big
+     * to encode in memory.
+     * @param out Where to write.
+     * @param kind The kind byte.
+     * @throws IOException
+     */
+    static void writeHeader(OutputStream out, int kind) throws IOException {
+        out.write(MAGIC);
+        out.write(kind);
+        out.write(VERSION);
+    }
+
+    /**
+     * Writes N to a stream as a varint.
+     * @param out Where to write.
+     * @param n A non-negative number.
+     * @throws IOException
+     */
+    static void writeVarint(OutputStream out, long n) throws IOException {
+        while ((n & ~0x7fL) != 0) {
+            out.write((int) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    /**
+     * Reads the header of an encoding from a stream.
+     * @param in Where to read.
+     * @param version A one-element array the format version is put in.
+     * @return The kind byte.
+     * @throws IOException If the stream holds no gitlet object.
+     */
+    static int readHeader(InputStream in, int[] version) throws IOException {
+        int kind = in.read() == MAGIC ? in.read() : -1;
+        version[0] = in.read();
+        if (kind < 0 || version[0] < 0) {
+            throw new IOException("not a gitlet object");
+        } else if (version[0] > VERSION) {
+            throw new IOException("unknown format version " + version[0]);
+        }
+        return kind;
+    }
+
+    /**
+     * Reads a varint from a stream.
+     * @param in Where to read.
+     * @return The number.
+     * @throws IOException
+     */
+    static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("truncated object");
+            }
+            result |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * A growing buffer encodings are written to.
+     */
+    static class Out extends ByteArrayOutputStream {
+        /**
+         * Writes the header of an encoding.
+         * @param kind The kind byte.
+         */
+        void header(int kind) {
+            write(MAGIC);
+            write(kind);
+            write(VERSION);
+        }
+
+        /**
+         * Writes N as a varint, seven bits at a time, low bits first.
+         * @param n A non-negative number.
+         */
+        void writeVarint(long n) {
+            while ((n & ~0x7fL) != 0) {
+                write((int) ((n & 0x7f) | 0x80));
+                n >>>= 7;
+            }
+            write((int) n);
+        }
+
+        /**
+         * Writes a string, or the empty string for null.
+         * @param s The string.
+         */
+        void writeString(String s) {
+            writeData(s == null ? new byte[0]
+                    : s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Writes bytes prefixed by their length.
+         * @param b The bytes.
+         */
+        void writeData(byte[] b) {
+            writeVarint(b.length);
+            write(b, 0, b.length);
+        }
+
+        /**
+         * Writes a hex id as its raw bytes, or nothing but a zero
+         * length for an empty or null id.
+         * @param id The hex id.
+         */
+        void writeId(String id) {
+            writeData(id == null || id.isEmpty() ? new byte[0]
+                    : Pack.toBytes(id));
+        }
+
+        /**
+         * Writes a map of names to ids in name order. A null map is
+         * written as an empty one.
+         * @param map The map.
+         */
+        void writeIds(Map<String, String> map) {
+            if (map == null) {
+                writeVarint(0);
+                return;
+            }
+            writeVarint(map.size());
+            for (Map.Entry<String, String> e
+                    : new TreeMap<>(map).entrySet()) {
+                writeString(e.getKey());
+                writeId(e.getValue());
+            }
+        }
+
+        /**
+         * Writes a map of names to strings in name order.
+         * @param map The map.
+         */
+        void writeStrings(Map<String, String> map) {
+            writeVarint(map.size());
+            for (Map.Entry<String, String> e
+                    : new TreeMap<>(map).entrySet()) {
+                writeString(e.getKey());
+                writeString(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * A reader over an encoding.
+     */
+    static class In {
+        /**The encoding.*/
+        private final byte[] _data;
+        /**Where the next byte is read from.*/
+        private int _at;
+
+        /**
+         * A reader starting at the beginning of DATA.
+         * @param data The encoding.
+         */
+        In(byte[] data) {
+            _data = data;
+        }
+
+        /**
+         * Reads one byte.
+         * @return The byte, from 0 to 255.
+         */
+        int readByte() {
+            return _data[_at++] & 0xff;
+        }
+
+        /**
+         * Reads a varint.
+         * @return The number.
+         */
+        long readVarint() {
+            long result = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                result |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return result;
+        }
+
+        /**
+         * Reads bytes written with their length.
+         * @return The bytes.
+         */
+        byte[] readData() {
+            int n = (int) readVarint();
+            byte[] result = new byte[n];
+            System.arraycopy(_data, _at, result, 0, n);
+            _at += n;
+            return result;
+        }
+
+        /**
+         * Reads a string.
+         * @return The string.
+         */
+        String readString() {
+            return new String(readData(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads an id.
+         * @return The hex id, or the empty string if none was written.
+         */
+        String readId() {
+            byte[] id = readData();
+            return id.length == 0 ? "" : Pack.toHex(id);
+        }
+
+        /**
+         * Reads a map written by writeIds. Names written without an id
+         * map to null.
+         * @return The map.
+         */
+        HashMap<String, String> readIds() {
+            int n = (int) readVarint();
+            HashMap<String, String> result = new HashMap<>(2 * n);
+            for (int i = 0; i < n; i += 1) {
+                String key = readString();
+                String id = readId();
+                result.put(key, id.isEmpty() ? null : id);
+            }
+            return result;
+        }
+
+        /**
+         * Reads a map written by writeStrings.
+         * @return The map.
+         */
+        HashMap<String, String> readStrings() {
+            int n = (int) readVarint();
+            HashMap<String, String> result = new HashMap<>(2 * n);
+            for (int i = 0; i < n; i += 1) {
+                String key = readString();
+                result.put(key, readString());
+            }
+            return result;
+        }
+    }
+}
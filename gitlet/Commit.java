@@ -1,13 +1,10 @@
 package gitlet;
 
 import java.io.IOException;
-import java.io.Serializable;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -15,18 +12,23 @@ import java.util.HashMap;
  * @author Yu Xi Gui
  */
 
-public class Commit implements Serializable {
-    /**The SHA1-value after hashing the commit's type, files' hashes,
-     * parent hashvalue, and commit message.*/
+public class Commit {
+    /**The SHA1-value of the canonical encoding of the commit's parents,
+     * time, message and tree.*/
     private String _hashvalue;
     /**The id of this commit's parent.*/
     private String _parent;
-    /**The time this commit is commited.*/
-    private String _time;
+    /**The time this commit is commited, in milliseconds since the epoch.*/
+    private long _time;
     /**The commit message entered by the user.*/
     private String _commitMessage;
-    /** The blob references made by this commit.*/
-    private HashMap<String, String> _blobs;
+    /**The id of the tree of files of this commit.*/
+    private String _tree;
+    /** The blob references made by this commit, read from its tree
+     * when first asked for.*/
+    private Manifest _blobs;
+    /**The gitlet directory this commit's trees are read from.*/
+    private String _source;
 
     /**The id of this commit's parent2.*/
     private String _parent2;
@@ -35,9 +37,10 @@ public class Commit implements Serializable {
     public Commit() {
         _parent = "";
         _hashvalue = "";
+        _tree = "";
         _blobs = null;
         _commitMessage = "";
-        _time = "";
+        _time = 0;
         _parent2 = "";
 
 
@@ -50,36 +53,89 @@ public class Commit implements Serializable {
      * @param commitMessage Commit message entered.
      * @param removeFiles Files to remove.
      */
-    @SuppressWarnings("unchecked")
     public Commit(String parent, HashMap<String, String> addFiles,
                   String commitMessage, HashMap<String, String> removeFiles) {
         _parent = parent;
         if (_parent.equals("")) {
-            _time = "Thu Jan 01 00:00:00 1970 -0800";
+            _time = 0;
         } else {
-            _time = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy").
-                    format(new Date()) + " -0800";
+            _time = System.currentTimeMillis();
         }
         _commitMessage = commitMessage;
-        if (parent.equals("")) {
-            _blobs = new HashMap<>();
-        } else {
-            _blobs = new HashMap<>();
-            _blobs = (HashMap<String, String>) ((Commit) Main.readF
-                    (".commits", getParentOne())).getBlobs().clone();
-        }
-        for (String keys : addFiles.keySet()) {
-            _blobs.put(keys, addFiles.get(keys));
-        }
-        for (String keys : removeFiles.keySet()) {
-            _blobs.remove(keys);
+        String parentTree = "";
+        if (!parent.equals("")) {
+            parentTree = ((Commit) Main.readF(".commits", getParentOne()))
+                    .getTreeId();
         }
-        String toBeHashed = "commit " + _parent + _commitMessage;
-        for (String key : _blobs.keySet()) {
-            toBeHashed += key;
-        }
-        _hashvalue = Utils.sha1(toBeHashed);
+        _tree = Tree.update(parentTree, addFiles, removeFiles.keySet());
         _parent2 = "";
+        rehash();
+    }
+
+    /**
+     * A commit of a tree already written, as made when a repository of
+     * an older format is upgraded.
+     * @param parent The id of its first parent, or the empty string.
+     * @param parent2 The id of its second parent, or the empty string.
+     * @param time Its time, in milliseconds since the epoch.
+     * @param commitMessage Its message.
+     * @param tree The id of its tree of files.
+     */
+    Commit(String parent, String parent2, long time, String commitMessage,
+           String tree) {
+        _parent = parent;
+        _parent2 = parent2;
+        _time = time;
+        _commitMessage = commitMessage;
+        _tree = tree;
+        rehash();
+    }
+
+    /**
+     * Computes the id of this commit from the canonical encoding of
+     * everything but the id itself.
+     */
+    private void rehash() {
+        Codec.Out out = new Codec.Out();
+        encodeContent(out);
+        _hashvalue = Utils.sha1("commit", out.toByteArray());
+    }
+
+    /**
+     * Writes this commit into an encoding.
+     * @param out Where to write.
+     */
+    void encode(Codec.Out out) {
+        out.writeId(_hashvalue);
+        encodeContent(out);
+    }
+
+    /**
+     * Writes everything the id of this commit is computed from.
+     * @param out Where to write.
+     */
+    private void encodeContent(Codec.Out out) {
+        out.writeId(_parent);
+        out.writeId(_parent2);
+        out.writeVarint(_time);
+        out.writeString(_commitMessage);
+        out.writeId(_tree);
+    }
+
+    /**
+     * Reads a commit written by encode.
+     * @param in Where to read.
+     * @return The commit.
+     */
+    static Commit decode(Codec.In in) {
+        Commit c = new Commit();
+        c._hashvalue = in.readId();
+        c._parent = in.readId();
+        c._parent2 = in.readId();
+        c._time = in.readVarint();
+        c._commitMessage = in.readString();
+        c._tree = in.readId();
+        return c;
     }
 
     /**To get this commit's SHA1-value.
@@ -99,14 +155,45 @@ public class Commit implements Serializable {
      * @return String of this commit's timestamp.
      */
     public String getTime() {
-        return this._time;
+        if (_time == 0) {
+            return "Thu Jan 01 00:00:00 1970 -0800";
+        }
+        return new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy").
+                format(new Date(_time)) + " -0800";
+    }
+
+    /**To get this commit's timestamp as a number.
+     * @return Milliseconds since the epoch.
+     */
+    public long getMillis() {
+        return _time;
     }
     /**To get this commit's blobs.
-     * @return Hashmap of this commit's blobs.
+     * @return The manifest of this commit's blobs by path, read
+     * through its tree.
      */
-    public HashMap<String, String> getBlobs() {
+    public Map<String, String> getBlobs() {
+        if (_blobs == null) {
+            _blobs = new Manifest(_source == null ? Main.gitletDir()
+                    : _source, _tree);
+        }
         return _blobs;
     }
+
+    /**To get the id of this commit's tree of files.
+     * @return String of the tree id.
+     */
+    public String getTreeId() {
+        return _tree;
+    }
+
+    /**
+     * Makes this commit read its trees from another repository.
+     * @param gitlet The gitlet directory of that repository.
+     */
+    void setSource(String gitlet) {
+        _source = gitlet;
+    }
     /**To get this commit's commit message.
      * @return String of this commit's commit message.
      */
@@ -127,6 +214,7 @@ public class Commit implements Serializable {
      */
     public void setParent1(String id) {
         _parent = id;
+        rehash();
     }
     /**
      * Changes the parentTwo id.
@@ -134,6 +222,7 @@ public class Commit implements Serializable {
      */
     public void setParent2(String id) {
         _parent2 = id;
+        rehash();
     }
 
     /**
@@ -145,13 +234,7 @@ public class Commit implements Serializable {
      */
     public static void dupCom(String to, String from, String id)
             throws IOException {
-        Path t = Paths.get(to, ".commits",
-                id);
-        Path g = Paths.get(from, ".commits",
-                id);
-        if (!Files.exists(t)) {
-            Files.copy(g, t);
-        }
+        Main.copyObject(to, from, ".commits", id);
     }
 
 
@@ -0,0 +1,551 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The shape of the history: for every commit, the positions of its
+ * parents, its generation number and its time, so that walks over the
+ * history, ancestry questions and listings by date never decode a
+ * commit. Commits are
+ * numbered in the order they were added, parents before children. The
+ * generation of a root commit is 1 and that of any other commit one
+ * more than its parents' greatest, so a commit can only be an ancestor
+ * of commits of a higher generation, and a walk looking for it can stop
+ * below its generation.
+ *
+ * The graph is kept in the commit-graph file of the gitlet directory: a
+ * header, the magic number, the version and the number of commits,
+ * then one fixed-size record per commit, its id, the positions of its
+ * parents, -1 for none, its generation and its time. A file of an
+ * older version is ignored and written again. New commits are appended,
+ * with the file locked, and the count in the header written last, so a
+ * record cut short is never counted. The count is read again once the
+ * file is locked: if another process appended meanwhile, the commits
+ * not saved yet are numbered after its. A commit missing from the
+ * graph, made by an older gitlet or fetched, is read and added, with
+ * its ancestors, when first asked about. A parent missing from the
+ * repository is taken as none, but such a commit and its descendants
+ * are only kept in memory, so the file never records a wrong history.
+ * @author Yu Xi Gui
+ */
+class CommitGraph {
+    /**The name of the file in the gitlet directory.*/
+    static final String FILE = "commit-graph";
+    /**The magic number heading the file.*/
+    static final int MAGIC = 0x47434731;
+    /**The version of the file written.*/
+    static final int VERSION = 3;
+    /**The number of bytes of the header.*/
+    static final int HEADER = 12;
+    /**The number of bytes of a record.*/
+    static final int RECORD = Pack.ID_BYTES + 4 + 4 + 4 + 8;
+
+    /**The graphs opened so far, by gitlet directory.*/
+    private static HashMap<String, CommitGraph> _open = new HashMap<>();
+
+    /**The gitlet directory of the repository.*/
+    private final String _gitlet;
+    /**The ids of the commits, by position.*/
+    private ArrayList<ObjectId> _ids = new ArrayList<>();
+    /**The positions of the commits, by id.*/
+    private IdIntMap _index = new IdIntMap();
+    /**The first parents, by position.*/
+    private int[] _parent1 = new int[16];
+    /**The second parents, by position.*/
+    private int[] _parent2 = new int[16];
+    /**The generations, by position.*/
+    private int[] _generation = new int[16];
+    /**The times, in epoch millis, by position.*/
+    private long[] _time = new long[16];
+    /**The commits with an ancestor missing from the repository.*/
+    private BitSet _partial = new BitSet();
+    /**How many of the commits are in the file.*/
+    private int _saved;
+
+    /**
+     * An empty graph of the given gitlet directory.
+     * @param gitlet The gitlet directory of the repository.
+     */
+    private CommitGraph(String gitlet) {
+        _gitlet = gitlet;
+    }
+
+    /**
+     * Returns the graph of the repository of the given gitlet
+     * directory, or of one of its working trees.
+     * @param gitlet The gitlet directory.
+     * @return The graph.
+     */
+    static synchronized CommitGraph of(String gitlet) {
+        return _open.computeIfAbsent(Worktree.common(gitlet), common -> {
+            CommitGraph graph = new CommitGraph(common);
+            graph.load();
+            return graph;
+        });
+    }
+
+    /**
+     * Writes the commits added to the graphs opened so far.
+     * @throws IOException
+     */
+    static synchronized void saveAll() throws IOException {
+        for (CommitGraph graph : _open.values()) {
+            graph.save();
+        }
+    }
+
+    /**
+     * Removes the file of the graph of a repository, for it to be built
+     * again from the commits left.
+     * @param gitlet The gitlet directory.
+     * @throws IOException
+     */
+    static synchronized void drop(String gitlet) throws IOException {
+        String common = Worktree.common(gitlet);
+        _open.remove(common);
+        Files.deleteIfExists(Paths.get(common, FILE));
+    }
+
+    /**
+     * Returns the number of commits in the graph.
+     * @return The count.
+     */
+    int size() {
+        return _ids.size();
+    }
+
+    /**
+     * Returns the position of a commit, adding it and its ancestors
+     * if they are not in the graph yet.
+     * @param id The id of the commit.
+     * @return Its position, or -1 if there is no such commit.
+     */
+    int find(String id) {
+        if (id == null || id.isEmpty()) {
+            return -1;
+        }
+        int i = _index.get(id);
+        return i >= 0 ? i : ensure(id);
+    }
+
+    /**
+     * Returns the id of a commit.
+     * @param i Its position.
+     * @return The hex id.
+     */
+    String id(int i) {
+        return _ids.get(i).toString();
+    }
+
+    /**
+     * Returns the first parent of a commit.
+     * @param i Its position.
+     * @return The position of the parent, or -1.
+     */
+    int parent1(int i) {
+        return _parent1[i];
+    }
+
+    /**
+     * Returns the second parent of a commit.
+     * @param i Its position.
+     * @return The position of the parent, or -1.
+     */
+    int parent2(int i) {
+        return _parent2[i];
+    }
+
+    /**
+     * Returns the generation of a commit.
+     * @param i Its position.
+     * @return The generation, 1 for a root.
+     */
+    int generation(int i) {
+        return _generation[i];
+    }
+
+    /**
+     * Returns the time of a commit.
+     * @param i Its position.
+     * @return Its time in epoch millis.
+     */
+    long time(int i) {
+        return _time[i];
+    }
+
+    /**
+     * Returns an order of positions putting the most recent commits
+     * first. Of two commits made in the same millisecond, the one of
+     * the higher generation, which may descend from the other, comes
+     * first.
+     * @return The order.
+     */
+    Comparator<Integer> newestFirst() {
+        return (i, j) -> _time[i] != _time[j]
+                ? Long.compare(_time[j], _time[i])
+                : _generation[i] != _generation[j]
+                ? Integer.compare(_generation[j], _generation[i])
+                : Integer.compare(j, i);
+    }
+
+    /**
+     * Adds a commit just made, whose parents are in the repository.
+     * @param c The commit.
+     * @return Its position.
+     */
+    int add(Commit c) {
+        int i = _index.get(c.getId());
+        if (i >= 0) {
+            return i;
+        }
+        int p1 = find(c.getParentOne());
+        int p2 = find(c.getParent2());
+        return append(ObjectId.of(c.getId()), p1, p2, c.getMillis(),
+                missing(c.getParentOne(), p1) || missing(c.getParent2(), p2));
+    }
+
+    /**
+     * Adds a commit fetched or made by an older gitlet, with those of
+     * its ancestors the graph lacks, so that later walks find them in
+     * the graph. Nothing is done for a commit the graph has.
+     * @param id The id of the commit.
+     */
+    void add(String id) {
+        find(id);
+    }
+
+    /**
+     * Returns the commits a commit can reach, itself included.
+     * @param from The position of the commit.
+     * @return The positions reached.
+     */
+    BitSet ancestors(int from) {
+        BitSet seen = new BitSet(size());
+        ArrayDeque<Integer> todo = new ArrayDeque<>();
+        if (from >= 0) {
+            todo.push(from);
+        }
+        while (!todo.isEmpty()) {
+            int i = todo.pop();
+            if (!seen.get(i)) {
+                seen.set(i);
+                if (_parent1[i] >= 0) {
+                    todo.push(_parent1[i]);
+                }
+                if (_parent2[i] >= 0) {
+                    todo.push(_parent2[i]);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Writes the commits added since the file was last written to its
+     * end, then their count to its header, with the file locked. Those
+     * with an ancestor missing from the repository are left out. If the
+     * file is not the one last read or written, because another process
+     * appended to it or it was removed, it is read again and the commits
+     * it lacks are numbered after its own, so positions found before may
+     * change. Nothing is written for a store kept in memory.
+     * @throws IOException
+     */
+    synchronized void save() throws IOException {
+        if (_saved == size()
+                || ObjectStore.of(_gitlet) instanceof MemoryStore) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(Paths.get(_gitlet, FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            FileLock lock = out.lock();
+            try {
+                CommitGraph file = this;
+                if (!current(out) || _partial.nextSetBit(_saved) >= 0) {
+                    file = new CommitGraph(_gitlet);
+                    file.read(ByteBuffer.wrap(readAll(out)));
+                    for (int i = _saved; i < size(); i += 1) {
+                        file.copy(this, i);
+                    }
+                }
+                int from = file._saved;
+                ByteBuffer buf = ByteBuffer.allocate((file.size() - from)
+                        * RECORD);
+                for (int i = from; i < file.size(); i += 1) {
+                    buf.put(file._ids.get(i).toBytes());
+                    buf.putInt(file._parent1[i]).putInt(file._parent2[i])
+                            .putInt(file._generation[i])
+                            .putLong(file._time[i]);
+                }
+                buf.flip();
+                out.write(buf, HEADER + (long) from * RECORD);
+                out.force(false);
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).putInt(file.size()).flip();
+                out.write(header, 0);
+                out.force(false);
+                file._saved = file.size();
+                if (file != this) {
+                    adopt(file);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Tells if the file, which must be locked, is the one last read or
+     * written: it counts as many commits, and ends with the same one.
+     * @param file The file.
+     * @return True if nothing was written to it since.
+     * @throws IOException
+     */
+    private boolean current(FileChannel file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        file.read(header, 0);
+        if (_saved == 0) {
+            return header.position() < HEADER || header.getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION || header.getInt(8) == 0;
+        }
+        if (header.position() < HEADER || header.getInt(0) != MAGIC
+                || header.getInt(4) != VERSION
+                || header.getInt(8) != _saved) {
+            return false;
+        }
+        ByteBuffer last = ByteBuffer.allocate(Pack.ID_BYTES);
+        file.read(last, HEADER + (long) (_saved - 1) * RECORD);
+        return last.position() == Pack.ID_BYTES
+                && ObjectId.of(last.array(), 0).equals(_ids.get(_saved - 1));
+    }
+
+    /**
+     * Reads the whole of a file.
+     * @param file The file.
+     * @return Its bytes.
+     * @throws IOException
+     */
+    private static byte[] readAll(FileChannel file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) file.size());
+        while (buf.hasRemaining()) {
+            if (file.read(buf, buf.position()) < 0) {
+                break;
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Adds a commit of another graph, unless this one has it or lacks
+     * one of its parents or it has an ancestor missing from the
+     * repository.
+     * @param other The other graph.
+     * @param i The position of the commit in it.
+     */
+    private void copy(CommitGraph other, int i) {
+        ObjectId id = other._ids.get(i);
+        if (other._partial.get(i) || _index.get(id) >= 0) {
+            return;
+        }
+        int p1 = other._parent1[i];
+        int p2 = other._parent2[i];
+        int q1 = p1 < 0 ? -1 : _index.get(other._ids.get(p1));
+        int q2 = p2 < 0 ? -1 : _index.get(other._ids.get(p2));
+        if ((p1 < 0 || q1 >= 0) && (p2 < 0 || q2 >= 0)) {
+            append(id, q1, q2, other._time[i], false);
+        }
+    }
+
+    /**
+     * Takes over the commits of another graph.
+     * @param other The graph.
+     */
+    private void adopt(CommitGraph other) {
+        _ids = other._ids;
+        _index = other._index;
+        _parent1 = other._parent1;
+        _parent2 = other._parent2;
+        _generation = other._generation;
+        _time = other._time;
+        _partial = other._partial;
+        _saved = other._saved;
+    }
+
+    /**
+     * Reads the commits counted in the file, if there is a good one.
+     */
+    private void load() {
+        if (ObjectStore.of(_gitlet) instanceof MemoryStore) {
+            return;
+        }
+        Path file = Paths.get(_gitlet, FILE);
+        try {
+            if (Files.exists(file)) {
+                read(ByteBuffer.wrap(Files.readAllBytes(file)));
+            }
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    /**
+     * Reads the commits counted in the bytes of a file, if it is a good
+     * one.
+     * @param buf The bytes.
+     */
+    private void read(ByteBuffer buf) {
+        if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC
+                || buf.getInt(4) != VERSION) {
+            return;
+        }
+        int count = buf.getInt(8);
+        if (count < 0 || buf.capacity() < HEADER + (long) count * RECORD) {
+            return;
+        }
+        buf.position(HEADER);
+        byte[] id = new byte[Pack.ID_BYTES];
+        for (int i = 0; i < count; i += 1) {
+            buf.get(id);
+            append(ObjectId.of(id, 0), buf.getInt(), buf.getInt(),
+                    buf.getInt(), buf.getLong(), false);
+        }
+        _saved = count;
+    }
+
+    /**
+     * Adds a commit not in the graph, and every ancestor of it not in
+     * the graph, parents first, reading them from the store.
+     * @param id The id of the commit.
+     * @return Its position, or -1 if there is no such commit.
+     */
+    private int ensure(String id) {
+        ArrayDeque<Commit> todo = new ArrayDeque<>();
+        Commit first = read(id);
+        if (first == null) {
+            return -1;
+        }
+        todo.push(first);
+        while (!todo.isEmpty()) {
+            Commit c = todo.peek();
+            Commit missing = null;
+            for (String p : new String[] {c.getParentOne(),
+                c.getParent2()}) {
+                if (missing == null && p != null && !p.isEmpty()
+                        && _index.get(p) < 0) {
+                    missing = read(p);
+                }
+            }
+            if (missing != null) {
+                todo.push(missing);
+                continue;
+            }
+            todo.pop();
+            if (_index.get(c.getId()) < 0) {
+                int p1 = position(c.getParentOne());
+                int p2 = position(c.getParent2());
+                append(ObjectId.of(c.getId()), p1, p2, c.getMillis(),
+                        missing(c.getParentOne(), p1)
+                        || missing(c.getParent2(), p2));
+            }
+        }
+        return _index.get(id);
+    }
+
+    /**
+     * Returns the position of a commit already in the graph.
+     * @param id The id, or the empty string.
+     * @return The position, or -1 if it is not in the graph.
+     */
+    private int position(String id) {
+        return id == null || id.isEmpty() ? -1 : _index.get(id);
+    }
+
+    /**
+     * Tells if a commit names a parent that is not in the graph.
+     * @param id The id of the parent, or the empty string.
+     * @param position Its position, or -1.
+     * @return True if it has a parent and it was not found.
+     */
+    private static boolean missing(String id, int position) {
+        return id != null && !id.isEmpty() && position < 0;
+    }
+
+    /**
+     * Reads a commit from the store.
+     * @param id The id.
+     * @return The commit, or null if the store does not have it.
+     */
+    private Commit read(String id) {
+        try {
+            byte[] data = ObjectStore.of(_gitlet).read(".commits", id);
+            return data == null ? null : (Commit) Main.decode(data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a commit at the end of the graph, its generation computed
+     * from its parents.
+     * @param id The id.
+     * @param p1 The position of its first parent, or -1.
+     * @param p2 The position of its second parent, or -1.
+     * @param time Its time in epoch millis.
+     * @param missing Whether a parent of it is missing from the
+     *                repository.
+     * @return Its position.
+     */
+    private int append(ObjectId id, int p1, int p2, long time,
+                       boolean missing) {
+        int gen = 1 + Math.max(p1 < 0 ? 0 : _generation[p1],
+                p2 < 0 ? 0 : _generation[p2]);
+        int i = append(id, p1, p2, gen, time, missing);
+        if ((p1 >= 0 && _partial.get(p1)) || (p2 >= 0 && _partial.get(p2))) {
+            _partial.set(i);
+        }
+        return i;
+    }
+
+    /**
+     * Adds a commit at the end of the graph.
+     * @param id The id.
+     * @param p1 The position of its first parent, or -1.
+     * @param p2 The position of its second parent, or -1.
+     * @param gen Its generation.
+     * @param time Its time in epoch millis.
+     * @param missing Whether a parent of it is missing from the
+     *                repository.
+     * @return Its position.
+     */
+    private int append(ObjectId id, int p1, int p2, int gen, long time,
+                       boolean missing) {
+        int i = _ids.size();
+        if (i == _parent1.length) {
+            _parent1 = Arrays.copyOf(_parent1, 2 * i);
+            _parent2 = Arrays.copyOf(_parent2, 2 * i);
+            _generation = Arrays.copyOf(_generation, 2 * i);
+            _time = Arrays.copyOf(_time, 2 * i);
+        }
+        _ids.add(id);
+        _index.put(id, i);
+        _parent1[i] = p1;
+        _parent2[i] = p2;
+        _generation[i] = gen;
+        _time[i] = time;
+        _partial.set(i, missing);
+        return i;
+    }
+}
@@ -1,11 +1,16 @@
 package gitlet;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TreeMap;
 
 /**
@@ -13,13 +18,18 @@ import java.util.TreeMap;
  * @author Yu Xi Gui
  */
 
-public class CommitTree implements Serializable {
+public class CommitTree {
+    /**The file locked while tree.bin is read again and saved.*/
+    static final String LOCK = "tree.lock";
+
     /*** The curBranchKey.*/
     private String _head;
     /*** Maps branches' name with the corresponding commit hashvalue.*/
     private HashMap<String, String> _branches;
     /** Map for track remote directories. */
     private HashMap<String, String> _remote;
+    /**The encoding this tree had when last read or saved, or null.*/
+    private byte[] _saved;
 
     /**
      * The constructor for CommitTree that comes with the initial commit.
@@ -29,12 +39,48 @@ public class CommitTree implements Serializable {
         Commit c = new Commit("", new HashMap<>(),
                 "initial commit", new HashMap<>());
         Main.writeFile(".commits", c.getId(), c);
+        MessageIndex.of(Main.gitletDir()).build();
         _branches.put("master", c.getId());
         _head = "master";
         _remote = new HashMap<>();
 
     }
 
+    /**
+     * A commit tree read from an encoding, or upgraded from an older
+     * format.
+     * @param head The cur branch.
+     * @param branches The branches.
+     * @param remote The remotes.
+     */
+    CommitTree(String head, HashMap<String, String> branches,
+                       HashMap<String, String> remote) {
+        _head = head;
+        _branches = branches;
+        _remote = remote;
+    }
+
+    /**
+     * Writes this tree into an encoding.
+     * @param out Where to write.
+     */
+    void encode(Codec.Out out) {
+        out.writeString(_head);
+        out.writeIds(_branches);
+        out.writeStrings(_remote);
+    }
+
+    /**
+     * Reads a tree written by encode.
+     * @param in Where to read.
+     * @return The tree.
+     */
+    static CommitTree decode(Codec.In in) {
+        String head = in.readString();
+        HashMap<String, String> branches = in.readIds();
+        return new CommitTree(head, branches, in.readStrings());
+    }
+
     /**
      * To get the remote hashmap.
      * @return The hashmap of _remote.
@@ -62,8 +108,8 @@ public class CommitTree implements Serializable {
     }
 
     /**
-     * When I add a commit to the commitTree.
-     * I need to delete the temp blobs and add those in the blobs folder.
+     * When I add a commit to the commitTree. The blobs were stored when
+     * added, so only the trees that changed and the commit are written.
      *
      * @param commitMess The commit message.
      * @param add Hashmap for files to add.
@@ -79,12 +125,8 @@ public class CommitTree implements Serializable {
             newComm.setParent2(p2);
         }
         Main.writeFile(".commits", newComm.getId(), newComm);
-        ArrayList<Object> files = Main.readFs(".temp_blobs");
-        for (Object file : files) {
-            Blob tempBlob = (Blob) file;
-            Main.writeFile(".blobs", tempBlob.getBlobname(), tempBlob);
-            Main.deleteFile(".temp_blobs", tempBlob.getBlobname());
-        }
+        CommitGraph.of(Main.gitletDir()).add(newComm);
+        MessageIndex.of(Main.gitletDir()).add(newComm);
         Main.getStage().getAddToStage().clear();
         _branches.put(_head, newComm.getId());
     }
@@ -118,12 +160,19 @@ public class CommitTree implements Serializable {
     }
 
     /**
-     * This method prints out all the commits ever created.
+     * This method prints out all the commits ever created, the most
+     * recent first. They are ordered by the times in the commit graph,
+     * and each is decoded only as it is printed.
      */
     public void globLog() {
-        ArrayList allCommits = Main.readFs(".commits");
-        for (Object o : allCommits) {
-            Commit c = (Commit) o;
+        CommitGraph graph = CommitGraph.of(Main.gitletDir());
+        ArrayList<Integer> commits = new ArrayList<>();
+        for (String id : ObjectStore.of(Main.gitletDir()).ids(".commits")) {
+            commits.add(graph.find(id));
+        }
+        commits.sort(graph.newestFirst());
+        for (int i : commits) {
+            Commit c = (Commit) Main.readF(".commits", graph.id(i));
             System.out.println("===");
             System.out.println("commit " + c.getId());
             if (c.getCommitmessage().contains("Merged")) {
@@ -138,20 +187,32 @@ public class CommitTree implements Serializable {
     }
 
     /**
-     * Prints out the corresponding commit's id with the given message.
+     * Prints out the corresponding commit's id with the given message,
+     * looked up in the message index.
      * @param message The commit message.
      */
     public void findCommits(String message) {
-        ArrayList allCommits = Main.readFs(".commits");
-        Boolean found = false;
-        for (Object o : allCommits) {
-            Commit c = (Commit) o;
-            if (c.getCommitmessage().equals(message)) {
-                System.out.println(c.getId());
-                found = true;
-            }
+        printFound(MessageIndex.of(Main.gitletDir()).find(message));
+    }
+
+    /**
+     * Does find --grep: prints out the ids of the commits whose
+     * messages have every word of the pattern in them.
+     * @param pattern The words to look for.
+     */
+    public void grepCommits(String pattern) {
+        printFound(MessageIndex.of(Main.gitletDir()).grep(pattern));
+    }
+
+    /**
+     * Prints out the ids of the commits found by find.
+     * @param ids The ids.
+     */
+    private void printFound(List<String> ids) {
+        for (String id : ids) {
+            System.out.println(id);
         }
-        if (!found) {
+        if (ids.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
     }
@@ -217,18 +278,91 @@ public class CommitTree implements Serializable {
     }
 
     /**
-     * This saves the given tree.
+     * This saves the given tree, atomically. Commands running in other
+     * working trees of the repository read and save it too, so it is
+     * saved holding a lock: tree.bin is read again, and only the
+     * branches, remotes and head this tree changed since it was read or
+     * last marked clean are put in, so the changes of a command that
+     * saved in between are kept. A branch both changed is left as this
+     * tree has it. This tree then takes the branches and remotes saved.
      * @param dir The given repo.
+     * @param head Whether to save the head too; a working tree made by
+     *             worktree add, or a remote pushed to, keeps its own.
      * @throws IOException
      */
-    public void save(String dir) throws IOException {
-        File t = new File(Utils.join(dir, "tree.bin").toString());
-        if (!t.exists()) {
-            t.createNewFile();
+    public void save(String dir, boolean head) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(dir, LOCK),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                CommitTree disk = Main.readTree(dir);
+                String own = _head;
+                if (disk != null && _saved != null) {
+                    CommitTree base = (CommitTree) Codec.decode(_saved);
+                    merge(base._branches, _branches, disk._branches);
+                    merge(base._remote, _remote, disk._remote);
+                    _branches = disk._branches;
+                    _remote = disk._remote;
+                    if (_head.equals(base._head)) {
+                        _head = disk._head;
+                    }
+                }
+                if (!head && disk != null) {
+                    _head = disk._head;
+                }
+                try {
+                    Main.writeAtomically(dir, Paths.get(dir, "tree.bin"),
+                            Codec.encode(this));
+                } finally {
+                    _head = own;
+                }
+            } finally {
+                lock.release();
+            }
         }
-        Utils.writeObject(t, this);
     }
 
+    /**
+     * Puts the entries of a map that changed since it was read into the
+     * same map as saved since, removing those removed.
+     * @param base The map as it was read.
+     * @param mine The map as it is now.
+     * @param disk The map as saved since.
+     */
+    private static void merge(Map<String, String> base,
+                              Map<String, String> mine,
+                              Map<String, String> disk) {
+        for (Map.Entry<String, String> e : mine.entrySet()) {
+            if (!Objects.equals(e.getValue(), base.get(e.getKey()))) {
+                disk.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String key : base.keySet()) {
+            if (!mine.containsKey(key)) {
+                disk.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Tells if this commit tree changed since it was read or last marked
+     * clean, by comparing its encoding with the one it had then. Its
+     * maps are handed out to be changed in place, so comparing is the
+     * only way not to miss a change.
+     * @return True if it has to be saved.
+     */
+    boolean isDirty() {
+        return !Arrays.equals(Codec.encode(this), _saved);
+    }
+
+    /**
+     * Records that this commit tree, as it is now, has been saved.
+     */
+    void markClean() {
+        _saved = Codec.encode(this);
+    }
+
+
     /**
      * Does the reset command.
      * @param commitId A String of commit id.
@@ -236,7 +370,7 @@ public class CommitTree implements Serializable {
      */
     public void reset(String commitId, Commit c) {
         if (!c.equals("")) {
-            HashMap<String, String> cBlobs = c.getBlobs();
+            Map<String, String> cBlobs = c.getBlobs();
             Main.getStage().updateVars();
             if (!Main.getStage().getUntracked().isEmpty()) {
                 for (String fname : Main.getStage().getUntracked().keySet()) {
@@ -251,9 +385,9 @@ public class CommitTree implements Serializable {
             Commit temp = getLastCommit();
             Boolean initial = false;
             while (temp != null && !temp.getId().equals(commitId)) {
-                HashMap<String, String> b = temp.getBlobs();
-                for (String fname : temp.getBlobs().keySet()) {
-                    if (!cBlobs.containsValue(b.get(fname))) {
+                Map<String, String> b = temp.getBlobs();
+                for (String fname : b.keySet()) {
+                    if (!cBlobs.containsKey(fname)) {
                         Main.delCDFile("", fname);
                     }
                 }
@@ -270,8 +404,10 @@ public class CommitTree implements Serializable {
 
             }
             for (String file : cBlobs.keySet()) {
-                Blob t = (Blob) Main.readF(".blobs", cBlobs.get(file));
-                Main.writeToCWDFile("", file, t.getContent());
+                if (!cBlobs.get(file).equals(
+                        Main.getStage().hashOf(file))) {
+                    Main.writeBlobToCWDFile("", file, cBlobs.get(file));
+                }
             }
             _branches.put(_head, c.getId());
             Main.getStage().empty();
@@ -0,0 +1,227 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Binary deltas between two versions of an object. A delta is the
+ * sizes of the base and the result, followed by instructions that
+ * either copy a run of bytes out of the base or insert literal bytes.
+ * Sizes, offsets and lengths are written as varints.
+ * @author Yu Xi Gui
+ */
+class Delta {
+    /**The instruction that copies a run of the base.*/
+    private static final int COPY = 1;
+    /**The instruction that inserts literal bytes.*/
+    private static final int INSERT = 0;
+    /**The length of the blocks of the base that are indexed.*/
+    private static final int BLOCK = 16;
+    /**The most candidate blocks looked at for one position, and the
+     * most slots tried to index a block.*/
+    private static final int PROBES = 8;
+
+    /**
+     * Returns a delta that turns BASE into TARGET. Every aligned block
+     * of the base is indexed by its hash; the target is then scanned
+     * for runs starting with an indexed block, which are extended as
+     * far as they match and copied, with the bytes between them
+     * inserted. A block that repeats the one before it is not indexed,
+     * and nor is one finding no free slot within PROBES, as git's
+     * diff-delta caps its buckets: a base repeating the same bytes
+     * would otherwise make every block probe past all the others.
+     * @param base The base bytes.
+     * @param target The bytes to rebuild.
+     * @return The delta.
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        int[] table = new int[tableSize(base.length / BLOCK)];
+        Arrays.fill(table, -1);
+        for (int at = 0; at + BLOCK <= base.length; at += BLOCK) {
+            if (at > 0 && Arrays.equals(base, at - BLOCK, at,
+                    base, at, at + BLOCK)) {
+                continue;
+            }
+            int slot = slot(hash(base, at), table.length);
+            for (int probes = 1; table[slot] >= 0 && probes < PROBES;
+                 probes += 1) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            if (table[slot] < 0) {
+                table[slot] = at;
+            }
+        }
+        int pending = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            int match = -1;
+            int length = 0;
+            int h = hash(target, i);
+            int probes = 0;
+            for (int slot = slot(h, table.length);
+                 table[slot] >= 0 && probes < PROBES;
+                 slot = (slot + 1) & (table.length - 1), probes += 1) {
+                int len = matchLength(base, table[slot], target, i);
+                if (len > length) {
+                    length = len;
+                    match = table[slot];
+                }
+            }
+            if (length < BLOCK) {
+                i += 1;
+                continue;
+            }
+            while (match > 0 && i > pending
+                    && base[match - 1] == target[i - 1]) {
+                match -= 1;
+                i -= 1;
+                length += 1;
+            }
+            insert(out, target, pending, i);
+            out.write(COPY);
+            writeVarint(out, match);
+            writeVarint(out, length);
+            i += length;
+            pending = i;
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuilds the target of DELTA from BASE.
+     * @param base The base bytes.
+     * @param delta The delta.
+     * @return The target bytes.
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] at = {0};
+        if (readVarint(delta, at) != base.length) {
+            throw new IllegalArgumentException("delta does not fit base");
+        }
+        byte[] result = new byte[readVarint(delta, at)];
+        int size = 0;
+        while (at[0] < delta.length) {
+            int op = delta[at[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, at);
+                int length = readVarint(delta, at);
+                System.arraycopy(base, offset, result, size, length);
+                size += length;
+            } else {
+                int length = readVarint(delta, at);
+                System.arraycopy(delta, at[0], result, size, length);
+                at[0] += length;
+                size += length;
+            }
+        }
+        if (size != result.length) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return result;
+    }
+
+    /**
+     * Writes an instruction inserting TARGET[FROM..TO), if not empty.
+     * @param out Where the delta is written.
+     * @param target The target bytes.
+     * @param from The first byte to insert.
+     * @param to One past the last byte to insert.
+     */
+    private static void insert(ByteArrayOutputStream out, byte[] target,
+                               int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /**
+     * Returns how many bytes match starting at A[I] and B[J].
+     * @param a The first array.
+     * @param i Where to start in A.
+     * @param b The second array.
+     * @param j Where to start in B.
+     * @return The length of the match.
+     */
+    private static int matchLength(byte[] a, int i, byte[] b, int j) {
+        int n = 0;
+        while (i + n < a.length && j + n < b.length && a[i + n] == b[j + n]) {
+            n += 1;
+        }
+        return n;
+    }
+
+    /**
+     * Hashes the block of DATA starting at AT.
+     * @param data The bytes.
+     * @param at The start of the block.
+     * @return The hash.
+     */
+    private static int hash(byte[] data, int at) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            h = h * 31 + data[at + k];
+        }
+        return h;
+    }
+
+    /**
+     * Returns the slot a hash starts probing at.
+     * @param h The hash.
+     * @param size The power-of-two table size.
+     * @return The slot.
+     */
+    private static int slot(int h, int size) {
+        return (h ^ (h >>> 16)) & (size - 1);
+    }
+
+    /**
+     * Returns a power of two at least twice N, for an open-addressed
+     * table holding N blocks.
+     * @param n The number of blocks.
+     * @return The table size.
+     */
+    private static int tableSize(int n) {
+        int size = 16;
+        while (size < 2 * n) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Writes N as a varint, seven bits at a time, low bits first.
+     * @param out Where to write.
+     * @param n A non-negative number.
+     */
+    static void writeVarint(ByteArrayOutputStream out, long n) {
+        while ((n & ~0x7fL) != 0) {
+            out.write((int) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    /**
+     * Reads a varint from DATA at AT[0], moving AT[0] past it.
+     * @param data The bytes.
+     * @param at A one-element array holding the position.
+     * @return The number.
+     */
+    static int readVarint(byte[] data, int[] at) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[at[0]++];
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
@@ -0,0 +1,597 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The store of a repository on disk, in its gitlet directory. Objects
+ * are written to the journal, or as loose files when too big to hold in
+ * memory, and are read from the packs, the journal and the loose files,
+ * in that order.
+ *
+ * An object missing from all of them is read from the alternates: the
+ * stores of other local repositories, listed one gitlet directory per
+ * line in the alternates file. Objects an alternate has count as stored
+ * here, so they are never copied in, and only this store's own objects
+ * are listed, repacked and pruned. The alternates of an alternate are
+ * not followed.
+ *
+ * Since objects found in an alternate are never copied in, the
+ * repository borrowing them breaks if gc in the alternate removes
+ * them. Adding an alternate therefore also lists the borrowing
+ * repository in the borrowers file of the alternate, and gc there keeps
+ * whatever the borrowers that still list it reach.
+ * @author Yu Xi Gui
+ */
+class FileStore implements ObjectStore {
+    /**The file in the gitlet directory listing the alternates.*/
+    static final String ALTERNATES = "alternates";
+    /**The file in the gitlet directory listing the repositories that
+     * have it as an alternate.*/
+    static final String BORROWERS = "borrowers";
+
+    /**The stores opened so far, by gitlet directory.*/
+    private static HashMap<String, FileStore> _open = new HashMap<>();
+
+    /**The gitlet directory.*/
+    private final String _gitlet;
+    /**The stores of the alternates, read when first needed.*/
+    private List<FileStore> _alternates;
+    /**The files whose time was set to now by freshen.*/
+    private final HashSet<Path> _freshened = new HashSet<>();
+
+    /**
+     * The store of the given gitlet directory.
+     * @param gitlet The gitlet directory.
+     */
+    private FileStore(String gitlet) {
+        _gitlet = gitlet;
+    }
+
+    /**
+     * Returns the store of the given gitlet directory.
+     * @param gitlet The gitlet directory.
+     * @return The store.
+     */
+    static synchronized FileStore of(String gitlet) {
+        return _open.computeIfAbsent(gitlet, FileStore::new);
+    }
+
+    @Override
+    public byte[] read(String folder, String id) throws IOException {
+        byte[] data = readOwn(folder, id);
+        for (int i = 0; data == null && i < alternates().size(); i += 1) {
+            data = alternates().get(i).readOwn(folder, id);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the stored bytes of an object of this store, not looking
+     * in the alternates.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return The stored bytes, or null if it is not here.
+     * @throws IOException
+     */
+    private byte[] readOwn(String folder, String id) throws IOException {
+        for (Pack pack : Pack.all(_gitlet)) {
+            byte[] data = pack.read(folder, id);
+            if (data != null) {
+                return data;
+            }
+        }
+        byte[] data = Journal.of(_gitlet).read(folder, id);
+        if (data != null) {
+            return data;
+        }
+        Path path = Loose.find(_gitlet, folder, id);
+        if (path == null) {
+            return null;
+        }
+        return Files.readAllBytes(path);
+    }
+
+    @Override
+    public InputStream open(String folder, String id) throws IOException {
+        InputStream in = openOwn(folder, id);
+        for (int i = 0; in == null && i < alternates().size(); i += 1) {
+            in = alternates().get(i).openOwn(folder, id);
+        }
+        return in;
+    }
+
+    /**
+     * Opens the stored bytes of an object of this store, not looking in
+     * the alternates.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return A stream of the stored bytes, or null if it is not here.
+     * @throws IOException
+     */
+    private InputStream openOwn(String folder, String id)
+            throws IOException {
+        for (Pack pack : Pack.all(_gitlet)) {
+            InputStream in = pack.open(folder, id);
+            if (in != null) {
+                return in;
+            }
+        }
+        byte[] data = Journal.of(_gitlet).read(folder, id);
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+        Path path = Loose.find(_gitlet, folder, id);
+        if (path == null) {
+            return null;
+        }
+        return Files.newInputStream(path);
+    }
+
+    /**
+     * Tells if an object is a chunk list. A delta entry of a pack is
+     * told by the flag its index keeps, since rebuilding it would mean
+     * inflating its whole chain; anything else by the header of its
+     * encoding, inflating no more than that.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is stored and a chunk list.
+     * @throws IOException
+     */
+    @Override
+    public boolean isChunks(String folder, String id) throws IOException {
+        for (Pack pack : Pack.all(_gitlet)) {
+            int entry = pack.find(id);
+            if (entry >= 0 && Pack.FOLDERS[pack.kind(entry)].equals(folder)
+                    && pack.knowsChunked(entry)) {
+                return pack.chunked(entry);
+            }
+        }
+        return ObjectStore.super.isChunks(folder, id);
+    }
+
+    @Override
+    public boolean has(String folder, String id) {
+        if (hasOwn(folder, id)) {
+            return true;
+        }
+        for (FileStore alt : alternates()) {
+            if (alt.hasOwn(folder, id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells if this store has an object of its own.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is here, not counting the alternates.
+     */
+    private boolean hasOwn(String folder, String id) {
+        for (Pack pack : Pack.all(_gitlet)) {
+            int entry = pack.find(id);
+            if (entry >= 0 && Pack.FOLDERS[pack.kind(entry)].equals(folder)) {
+                return true;
+            }
+        }
+        return Journal.of(_gitlet).has(folder, id)
+                || Loose.find(_gitlet, folder, id) != null;
+    }
+
+    /**
+     * Tells if an object is stored, here or in an alternate, and if so
+     * sets the time of the file holding it, its loose file, its pack or
+     * the journal, to now: prune judges the age of an object by that
+     * file, so an object just reused is spared as if just written. A
+     * file whose time cannot be set, in an alternate that is read-only
+     * say, is left as it is.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is stored.
+     */
+    @Override
+    public boolean freshen(String folder, String id) {
+        if (freshenOwn(folder, id)) {
+            return true;
+        }
+        for (FileStore alt : alternates()) {
+            if (alt.freshenOwn(folder, id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the time of the file holding an object of this store to now,
+     * not looking in the alternates. Each file is touched once a
+     * process.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is here.
+     */
+    private boolean freshenOwn(String folder, String id) {
+        Path holder = null;
+        for (Pack pack : Pack.all(_gitlet)) {
+            int entry = pack.find(id);
+            if (entry >= 0 && Pack.FOLDERS[pack.kind(entry)].equals(folder)) {
+                holder = pack.file();
+                break;
+            }
+        }
+        if (holder == null && Journal.of(_gitlet).has(folder, id)) {
+            holder = Paths.get(_gitlet, Journal.SEGMENT);
+        }
+        if (holder == null) {
+            holder = Loose.find(_gitlet, folder, id);
+        }
+        if (holder == null) {
+            return false;
+        }
+        if (_freshened.add(holder)) {
+            touch(holder);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the time of a file to now, if it can be set.
+     * @param f The file.
+     */
+    private static void touch(Path f) {
+        try {
+            Files.setLastModifiedTime(f,
+                    FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    /**
+     * Appends the objects not stored yet to the journal, in one write.
+     * @param folder The folder of the objects.
+     * @param objects Maps hex ids to stored bytes.
+     * @throws IOException
+     */
+    @Override
+    public void write(String folder, Map<String, byte[]> objects)
+            throws IOException {
+        HashMap<String, byte[]> fresh = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+            if (!freshen(folder, e.getKey())) {
+                fresh.put(e.getKey(), e.getValue());
+            }
+        }
+        Journal.of(_gitlet).append(folder, fresh);
+    }
+
+    /**
+     * Renames the file to the path of a loose object, so that objects
+     * too big to append to the journal are never copied.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @param file The file.
+     * @throws IOException
+     */
+    @Override
+    public void put(String folder, String id, Path file) throws IOException {
+        if (freshen(folder, id)) {
+            Files.delete(file);
+            return;
+        }
+        Path dest = Loose.path(_gitlet, folder, id);
+        Files.createDirectories(dest.getParent());
+        Files.move(file, dest, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public Iterable<String> ids(String folder) {
+        ArrayList<String> rest = new ArrayList<>();
+        for (Pack pack : Pack.all(_gitlet)) {
+            rest.addAll(pack.ids(folder));
+        }
+        rest.addAll(Journal.of(_gitlet).ids(folder));
+        Iterable<String> loose = Loose.ids(_gitlet, folder);
+        return () -> Stream.concat(
+                StreamSupport.stream(loose.spliterator(), false),
+                rest.stream()).iterator();
+    }
+
+    /**
+     * Finds the objects whose ids start with a prefix in the sorted
+     * indexes of the packs and the journal, and in the shard of loose
+     * objects the prefix names, here and in the alternates.
+     * @param folder The folder.
+     * @param prefix The start of the ids, in lower-case hex.
+     * @param limit The most ids to find.
+     * @return The ids found.
+     * @throws IOException
+     */
+    @Override
+    public Set<String> matching(String folder, String prefix, int limit)
+            throws IOException {
+        TreeSet<String> result = new TreeSet<>();
+        matchOwn(folder, prefix, limit, result);
+        for (FileStore alt : alternates()) {
+            alt.matchOwn(folder, prefix, limit, result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the objects of this store whose ids start with a prefix to a
+     * set, until it holds LIMIT ids, not looking in the alternates.
+     * @param folder The folder.
+     * @param prefix The start of the ids.
+     * @param limit The size the set may reach.
+     * @param result The set.
+     * @throws IOException
+     */
+    private void matchOwn(String folder, String prefix, int limit,
+                          Set<String> result) throws IOException {
+        for (Pack pack : Pack.all(_gitlet)) {
+            pack.matching(folder, prefix, limit, result);
+        }
+        Journal.of(_gitlet).matching(folder, prefix, limit, result);
+        Loose.matching(_gitlet, folder, prefix, limit, result);
+    }
+
+    /**
+     * Returns the stores of the alternates, in the order listed. Lines
+     * are gitlet directories, relative to this one or absolute; blank
+     * lines and this directory itself are skipped.
+     * @return The stores.
+     */
+    synchronized List<FileStore> alternates() {
+        if (_alternates == null) {
+            _alternates = new ArrayList<>();
+            Path file = Paths.get(_gitlet, ALTERNATES);
+            if (Files.exists(file)) {
+                try {
+                    for (String line : Files.readAllLines(file)) {
+                        addStore(line.trim());
+                    }
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+            }
+        }
+        return _alternates;
+    }
+
+    /**
+     * Adds a repository to the alternates and to the alternates file,
+     * and lists this one among its borrowers, for gc there to keep the
+     * objects this one reads from it.
+     * @param gitlet The gitlet directory of the repository.
+     * @return False if it was listed already, or is this one.
+     * @throws IOException
+     */
+    synchronized boolean addAlternate(String gitlet) throws IOException {
+        int before = alternates().size();
+        addStore(gitlet);
+        if (_alternates.size() == before) {
+            return false;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (FileStore alt : _alternates) {
+            lines.append(alt._gitlet).append('\n');
+        }
+        Main.writeAtomically(_gitlet, Paths.get(_gitlet, ALTERNATES),
+                lines.toString().getBytes(StandardCharsets.UTF_8));
+        FileStore alt = _alternates.get(_alternates.size() - 1);
+        alt.addBorrower(Paths.get(_gitlet).toAbsolutePath().normalize()
+                .toString());
+        return true;
+    }
+
+    /**
+     * Lists a repository that has this one as an alternate in the
+     * borrowers file, unless it is listed already.
+     * @param gitlet The gitlet directory of the repository, absolute.
+     * @throws IOException
+     */
+    private synchronized void addBorrower(String gitlet) throws IOException {
+        Path file = Paths.get(_gitlet, BORROWERS);
+        ArrayList<String> lines = new ArrayList<>();
+        if (Files.exists(file)) {
+            lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+        if (lines.contains(gitlet)) {
+            return;
+        }
+        lines.add(gitlet);
+        Main.writeAtomically(_gitlet, file, (String.join("\n", lines) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the gitlet directories of the repositories listed in the
+     * borrowers file that are still there and still have this one as
+     * an alternate.
+     * @return The gitlet directories.
+     * @throws IOException
+     */
+    synchronized List<String> borrowers() throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        Path file = Paths.get(_gitlet, BORROWERS);
+        if (!Files.exists(file)) {
+            return result;
+        }
+        Path own = Paths.get(_gitlet).toAbsolutePath().normalize();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || !Files.isDirectory(Paths.get(line))) {
+                continue;
+            }
+            for (FileStore alt : of(line).alternates()) {
+                if (Paths.get(alt._gitlet).equals(own)) {
+                    result.add(line);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the store of a gitlet directory to the alternates, unless it
+     * is blank, this one or listed already.
+     * @param gitlet The gitlet directory, as in the alternates file.
+     */
+    private void addStore(String gitlet) {
+        if (gitlet.isEmpty()) {
+            return;
+        }
+        Path own = Paths.get(_gitlet).toAbsolutePath().normalize();
+        Path dir = own.resolve(gitlet).normalize();
+        if (dir.equals(own)) {
+            return;
+        }
+        FileStore alt = of(dir.toString());
+        if (!_alternates.contains(alt)) {
+            _alternates.add(alt);
+        }
+    }
+
+    /**
+     * Writes every object, packed, in the journal or loose, to a fresh
+     * pack and removes the other copies, except objects bigger than
+     * Pack.MAX_PACKED, which stay loose.
+     * @param paths Maps blob ids to a path they were committed under.
+     * @throws IOException
+     */
+    @Override
+    public void repack(IdMap<String> paths) throws IOException {
+        HashMap<String, TreeMap<String, Pack.Source>> objects =
+                new HashMap<>();
+        ArrayList<Path> loose = new ArrayList<>();
+        Journal journal = Journal.of(_gitlet);
+        for (String folder : Pack.FOLDERS) {
+            TreeMap<String, Pack.Source> objs = new TreeMap<>();
+            for (Pack old : Pack.all(_gitlet)) {
+                for (String id : old.ids(folder)) {
+                    objs.put(id, () -> old.readDeflated(folder, id));
+                }
+            }
+            for (String id : journal.ids(folder)) {
+                objs.put(id, () -> journal.read(folder, id));
+            }
+            for (String id : Loose.ids(_gitlet, folder)) {
+                Path f = Loose.find(_gitlet, folder, id);
+                if (Files.size(f) > Pack.MAX_PACKED) {
+                    continue;
+                }
+                objs.put(id, () -> Files.readAllBytes(f));
+                loose.add(f);
+            }
+            objects.put(folder, objs);
+        }
+        Pack.write(_gitlet, objects, paths);
+        journal.clear();
+        for (Path p : loose) {
+            Loose.delete(p);
+        }
+    }
+
+    /**
+     * Removes dead loose objects older than the cutoff, then writes the
+     * packs and the journal again as one pack without their dead
+     * objects, if they have any. Packs cannot tell the age of each
+     * object, so every object of a pack or journal written after the
+     * cutoff is kept. The stored bytes of the objects removed are
+     * counted as reclaimed.
+     * @param live The ids of the live objects, by folder.
+     * @param paths Maps blob ids to a path they were committed under.
+     * @param cutoff Objects stored after this, in epoch millis, stay.
+     * @return The number of objects removed and the bytes reclaimed.
+     * @throws IOException
+     */
+    @Override
+    public long[] prune(Map<String, IdSet> live, IdMap<String> paths,
+                        long cutoff)
+            throws IOException {
+        long[] result = new long[2];
+        for (String folder : Pack.FOLDERS) {
+            for (String id : Loose.ids(_gitlet, folder)) {
+                Path f = Loose.find(_gitlet, folder, id);
+                if (f != null && !live.get(folder).contains(id)
+                        && modified(f) <= cutoff) {
+                    result[1] += Files.size(f);
+                    result[0] += 1;
+                    Loose.delete(f);
+                }
+            }
+        }
+        List<Pack> packs = Pack.all(_gitlet);
+        Journal journal = Journal.of(_gitlet);
+        HashMap<String, TreeMap<String, Pack.Source>> objects =
+                new HashMap<>();
+        long dead = 0;
+        long bytes = 0;
+        for (String folder : Pack.FOLDERS) {
+            objects.put(folder, new TreeMap<>());
+        }
+        for (Pack pack : packs) {
+            boolean keep = modified(pack.file()) > cutoff;
+            for (String folder : Pack.FOLDERS) {
+                for (String id : pack.ids(folder)) {
+                    if (keep || live.get(folder).contains(id)) {
+                        objects.get(folder).put(id,
+                                () -> pack.readDeflated(folder, id));
+                    } else {
+                        dead += 1;
+                        bytes += pack.length(pack.find(id));
+                    }
+                }
+            }
+        }
+        boolean keep = journal.lastModified() > cutoff;
+        for (String folder : Pack.FOLDERS) {
+            for (String id : journal.ids(folder)) {
+                if (keep || live.get(folder).contains(id)) {
+                    objects.get(folder).put(id,
+                            () -> journal.read(folder, id));
+                } else {
+                    dead += 1;
+                    bytes += journal.length(id);
+                }
+            }
+        }
+        if (dead > 0) {
+            Pack.write(_gitlet, objects, paths);
+            journal.clear();
+            result[0] += dead;
+            result[1] += bytes;
+        }
+        return result;
+    }
+
+    /**
+     * Returns when a file was last changed.
+     * @param f The file.
+     * @return Epoch millis.
+     * @throws IOException
+     */
+    private static long modified(Path f) throws IOException {
+        return Files.getLastModifiedTime(f).toMillis();
+    }
+}
@@ -0,0 +1,303 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The gc command. Every object reachable from a branch, remote-tracking
+ * branches included, or from the stage of a working tree is marked;
+ * every other object, and every staging file left behind, is then
+ * removed once it is older than a grace period, so that objects written
+ * by a command still running are never taken.
+ *
+ * Objects are removed by the store of the repository, which knows how
+ * they are laid out; gc itself only sweeps the staging files.
+ *
+ * A repository that others have added as an alternate lends them its
+ * objects without their being copied, so what the branches and stages
+ * of those borrowers reach is marked as well, read through their own
+ * stores. Borrowers are found in the borrowers file add-alternate
+ * writes; one that was moved away without it is not protected.
+ *
+ * The commit graph is marked one generation at a time, the commits of
+ * a generation and the trees under them in parallel. If commits the
+ * commit-graph file lists are removed, the file is removed too, to be
+ * built again from the commits left; so is the message index whenever
+ * objects are removed.
+ * @author Yu Xi Gui
+ */
+class Gc {
+    /**The grace period used when none is given, two weeks.*/
+    static final long GRACE = 14L * 24 * 60 * 60 * 1000;
+    /**The stage saved while a merge runs.*/
+    static final String TEMP_STAGE = ".temp_stage";
+
+    /**The gitlet directory collected.*/
+    private final String _gitlet;
+    /**The ids of the reachable objects, by folder.*/
+    private final Map<String, IdSet> _live = new HashMap<>();
+    /**Maps reachable blobs to a path they were committed under.*/
+    private final IdMap<String> _paths = new IdMap<>();
+    /**Objects and files older than this, in epoch millis, may go.*/
+    private final long _cutoff;
+    /**How many objects were removed.*/
+    private long _objects;
+    /**How many staging files were removed.*/
+    private int _files;
+    /**How many bytes were reclaimed.*/
+    private long _bytes;
+
+    /**
+     * A collection of the given gitlet directory.
+     * @param gitlet The gitlet directory.
+     * @param grace How old, in millis, an object must be to go.
+     */
+    private Gc(String gitlet, long grace) {
+        _gitlet = gitlet;
+        _cutoff = System.currentTimeMillis() - grace;
+        for (String folder : Pack.FOLDERS) {
+            _live.put(folder, new IdSet());
+        }
+    }
+
+    /**
+     * Reads the grace period given to gc --prune: "now", or a number of
+     * days.
+     * @param arg The argument.
+     * @return The grace period in millis.
+     */
+    static long parseGrace(String arg) {
+        if (arg.equals("now")) {
+            return 0;
+        }
+        try {
+            return Math.round(Double.parseDouble(arg) * 24 * 60 * 60 * 1000);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Incorrect operands.");
+        }
+    }
+
+    /**
+     * Does the gc command on the repository in the cur directory and
+     * reports what it reclaimed. What is staged in any of its working
+     * trees is kept.
+     * @param grace How old, in millis, an object must be to go.
+     */
+    static void run(long grace) {
+        String gitlet = Main.gitletDir();
+        Gc gc = new Gc(gitlet, grace);
+        try {
+            List<String> staged = new ArrayList<>(
+                    Main.getStage().getAddToStage().values());
+            staged.addAll(staged(gitlet));
+            gc.mark(gitlet, Main.getTree().getBr().values(), staged);
+            ObjectStore store = ObjectStore.of(gitlet);
+            if (store instanceof FileStore) {
+                for (String borrower : ((FileStore) store).borrowers()) {
+                    CommitTree tree = Worktree.readTree(borrower);
+                    if (tree != null) {
+                        gc.mark(borrower, tree.getBr().values(),
+                                staged(borrower));
+                    }
+                }
+            }
+            gc.sweep();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+        System.out.println("Removed " + gc._objects + " objects and "
+                + gc._files + " staging files, reclaimed " + gc._bytes
+                + " bytes.");
+    }
+
+    /**
+     * Returns the blobs staged in the working trees of a repository,
+     * other than that of the given gitlet directory, which is read by
+     * the command itself.
+     * @param gitlet The gitlet directory.
+     * @return The ids of the staged blobs.
+     * @throws IOException
+     */
+    private static List<String> staged(String gitlet) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (String other : Worktree.all(gitlet)) {
+            Stage s = other.equals(gitlet) ? null : Stage.read(other);
+            if (s != null) {
+                result.addAll(s.getAddToStage().values());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Marks everything reachable from the given commits and staged
+     * blobs of a repository, reading the objects through its store.
+     * @param source The gitlet directory of the repository.
+     * @param heads The ids of the commits branches point at.
+     * @param staged The ids of the staged blobs.
+     * @throws IOException
+     */
+    private void mark(String source, Iterable<String> heads,
+                      Iterable<String> staged) throws IOException {
+        IdSet commits = _live.get(".commits");
+        List<String> generation = new ArrayList<>();
+        for (String id : heads) {
+            if (id != null && commits.add(id)) {
+                generation.add(id);
+            }
+        }
+        while (!generation.isEmpty()) {
+            generation = generation.parallelStream()
+                    .flatMap(id -> parents(source, id).stream())
+                    .filter(commits::add)
+                    .collect(Collectors.toList());
+        }
+        for (String id : staged) {
+            if (id != null) {
+                markBlob(source, id);
+            }
+        }
+    }
+
+    /**
+     * Marks the tree of a commit and returns its parents.
+     * @param source The gitlet directory the commit is read through.
+     * @param id The id of the commit.
+     * @return The ids of its parents.
+     */
+    private List<String> parents(String source, String id) {
+        ArrayList<String> result = new ArrayList<>();
+        try {
+            byte[] data = ObjectStore.of(source).read(".commits", id);
+            if (data == null) {
+                return result;
+            }
+            Commit c = (Commit) Main.decode(data);
+            markTree(source, c.getTreeId(), "");
+            for (String p : new String[] {c.getParentOne(), c.getParent2()}) {
+                if (p != null && !p.isEmpty()) {
+                    result.add(p);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Marks a tree, and everything under it not marked already.
+     * @param source The gitlet directory the tree is read through.
+     * @param id The id of the tree.
+     * @param prefix The path of the tree.
+     * @throws IOException
+     */
+    private void markTree(String source, String id, String prefix)
+            throws IOException {
+        if (id.isEmpty() || !_live.get(Tree.FOLDER).add(id)) {
+            return;
+        }
+        Tree t = Tree.read(source, id);
+        for (Map.Entry<String, String> e : t.getFiles().entrySet()) {
+            _paths.putIfAbsent(e.getValue(), prefix + e.getKey());
+            markBlob(source, e.getValue());
+        }
+        for (Map.Entry<String, String> e : t.getDirs().entrySet()) {
+            markTree(source, e.getValue(),
+                    prefix + e.getKey() + Tree.SEPARATOR);
+        }
+    }
+
+    /**
+     * Marks a blob, and its chunks if it is chunked.
+     * @param source The gitlet directory the blob is read through.
+     * @param id The id of the blob.
+     * @throws IOException
+     */
+    private void markBlob(String source, String id) throws IOException {
+        if (!_live.get(".blobs").add(id)) {
+            return;
+        }
+        Chunks chunks = Chunks.read(source, ".blobs", id);
+        if (chunks != null) {
+            for (String chunk : chunks.getIds()) {
+                _live.get(Chunks.FOLDER).add(chunk);
+            }
+        }
+    }
+
+    /**
+     * Removes what was not marked and is older than the grace period:
+     * objects, a stage left by a merge and files left in the temporary
+     * directory.
+     * @throws IOException
+     */
+    private void sweep() throws IOException {
+        long[] pruned = ObjectStore.of(_gitlet).prune(_live, _paths,
+                _cutoff);
+        _objects += pruned[0];
+        _bytes += pruned[1];
+        if (pruned[0] > 0) {
+            CommitGraph graph = CommitGraph.of(_gitlet);
+            IdSet commits = _live.get(".commits");
+            for (int i = 0; i < graph.size(); i += 1) {
+                if (!commits.contains(graph.id(i))) {
+                    CommitGraph.drop(_gitlet);
+                    break;
+                }
+            }
+            MessageIndex.drop(_gitlet);
+        }
+        sweepFiles(Paths.get(_gitlet, Loose.TEMP), new HashSet<>());
+        Path stage = Paths.get(_gitlet, TEMP_STAGE);
+        if (Files.isRegularFile(stage) && old(stage)) {
+            _bytes += Files.size(stage);
+            _files += 1;
+            Files.delete(stage);
+        }
+    }
+
+    /**
+     * Removes the files of a directory that are not kept and are older
+     * than the grace period.
+     * @param dir The directory.
+     * @param keep The names of the files to keep.
+     * @throws IOException
+     */
+    private void sweepFiles(Path dir, Set<String> keep) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                if (Files.isRegularFile(f)
+                        && !keep.contains(f.getFileName().toString())
+                        && old(f)) {
+                    _bytes += Files.size(f);
+                    _files += 1;
+                    Files.delete(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells if a file is older than the grace period.
+     * @param f The file.
+     * @return True if it was last changed before the cutoff.
+     * @throws IOException
+     */
+    private boolean old(Path f) throws IOException {
+        return Files.getLastModifiedTime(f).toMillis() <= _cutoff;
+    }
+}
@@ -0,0 +1,69 @@
+package gitlet;
+
+import java.util.Arrays;
+
+/**
+ * A map from object ids to ints, laid out as an IdSet of its keys with
+ * the values in an int array beside the slots, so that no value is
+ * boxed. Values are not negative: -1 stands for an id without one.
+ * @author Yu Xi Gui
+ */
+class IdIntMap extends IdSet {
+    /**The value of the id in each slot, or -1.*/
+    private int[] _values = empty(slots());
+    /**The values before a resize, while it runs.*/
+    private int[] _old;
+
+    /**
+     * Returns the value of an id.
+     * @param id The id.
+     * @return The value, or -1 if the id has none.
+     */
+    synchronized int get(ObjectId id) {
+        return _values[slot(id.a(), id.b(), id.c())];
+    }
+
+    /**
+     * Returns the value of an id given in hex.
+     * @param hex The hex id.
+     * @return The value, or -1 if the id has none.
+     */
+    int get(String hex) {
+        return get(ObjectId.of(hex));
+    }
+
+    /**
+     * Sets the value of an id.
+     * @param id The id.
+     * @param value The value, not negative.
+     */
+    synchronized void put(ObjectId id, int value) {
+        int i = insert(id);
+        _values[i] = value;
+    }
+
+    @Override
+    void resize(int slots) {
+        _old = _values;
+        _values = empty(slots);
+        super.resize(slots);
+        _old = null;
+    }
+
+    @Override
+    void moved(int from, int to) {
+        _values[to] = _old[from];
+    }
+
+    /**
+     * Returns values for a table of the given number of slots, none
+     * of them set.
+     * @param slots The number of slots.
+     * @return The values, all -1.
+     */
+    private static int[] empty(int slots) {
+        int[] values = new int[slots];
+        Arrays.fill(values, -1);
+        return values;
+    }
+}
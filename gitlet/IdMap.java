@@ -0,0 +1,77 @@
+package gitlet;
+
+/**
+ * A map from object ids to values, laid out as an IdSet of its keys
+ * with the values in an array beside the slots.
+ * @param <V> The type of the values.
+ * @author Yu Xi Gui
+ */
+class IdMap<V> extends IdSet {
+    /**The value of the id in each slot.*/
+    private Object[] _values = new Object[slots()];
+    /**The values before a resize, while it runs.*/
+    private Object[] _old;
+
+    /**
+     * Returns the value of an id.
+     * @param id The id.
+     * @return The value, or null if the id has none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V get(ObjectId id) {
+        return (V) _values[slot(id.a(), id.b(), id.c())];
+    }
+
+    /**
+     * Returns the value of an id given in hex.
+     * @param hex The hex id.
+     * @return The value, or null if the id has none.
+     */
+    V get(String hex) {
+        return get(ObjectId.of(hex));
+    }
+
+    /**
+     * Sets the value of an id.
+     * @param id The id.
+     * @param value The value.
+     */
+    synchronized void put(ObjectId id, V value) {
+        int i = insert(id);
+        _values[i] = value;
+    }
+
+    /**
+     * Sets the value of an id unless it has one.
+     * @param id The id.
+     * @param value The value.
+     */
+    synchronized void putIfAbsent(ObjectId id, V value) {
+        int i = insert(id);
+        if (_values[i] == null) {
+            _values[i] = value;
+        }
+    }
+
+    /**
+     * Sets the value of an id given in hex unless it has one.
+     * @param hex The hex id.
+     * @param value The value.
+     */
+    void putIfAbsent(String hex, V value) {
+        putIfAbsent(ObjectId.of(hex), value);
+    }
+
+    @Override
+    void resize(int slots) {
+        _old = _values;
+        _values = new Object[slots];
+        super.resize(slots);
+        _old = null;
+    }
+
+    @Override
+    void moved(int from, int to) {
+        _values[to] = _old[from];
+    }
+}
@@ -0,0 +1,228 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of object ids kept in flat arrays of longs and ints, with open
+ * addressing, so that an id costs about 20 bytes and no object of its
+ * own, where a HashSet of hex Strings spends over a hundred on each.
+ * Ids are looked up in the slot their first bytes pick, then in the
+ * slots after it. The table is doubled when half full.
+ *
+ * Its methods are synchronized, so that it can be filled from parallel
+ * streams.
+ * @author Yu Xi Gui
+ */
+class IdSet implements Iterable<ObjectId> {
+    /**The fewest slots of a table.*/
+    private static final int MIN_SLOTS = 16;
+
+    /**Bytes 0 to 7 of the id in each slot.*/
+    private long[] _a;
+    /**Bytes 8 to 15 of the id in each slot.*/
+    private long[] _b;
+    /**Bytes 16 to 19 of the id in each slot.*/
+    private int[] _c;
+    /**Which slots hold an id.*/
+    private boolean[] _used;
+    /**The number of ids.*/
+    private int _size;
+
+    /**An empty set.*/
+    IdSet() {
+        allocate(MIN_SLOTS);
+    }
+
+    /**
+     * Adds an id.
+     * @param id The id.
+     * @return True if it was not in the set.
+     */
+    synchronized boolean add(ObjectId id) {
+        int before = _size;
+        insert(id);
+        return _size > before;
+    }
+
+    /**
+     * Adds an id given in hex.
+     * @param hex The hex id.
+     * @return True if it was not in the set.
+     */
+    boolean add(String hex) {
+        return add(ObjectId.of(hex));
+    }
+
+    /**
+     * Adds every id of another set.
+     * @param other The other set.
+     */
+    void addAll(IdSet other) {
+        for (ObjectId id : other) {
+            add(id);
+        }
+    }
+
+    /**
+     * Tells if an id is in the set.
+     * @param id The id.
+     * @return True if it is.
+     */
+    synchronized boolean contains(ObjectId id) {
+        return _used[slot(id.a(), id.b(), id.c())];
+    }
+
+    /**
+     * Tells if an id given in hex is in the set.
+     * @param hex The hex id.
+     * @return True if it is.
+     */
+    boolean contains(String hex) {
+        return contains(ObjectId.of(hex));
+    }
+
+    /**
+     * Returns the number of ids.
+     * @return The size.
+     */
+    synchronized int size() {
+        return _size;
+    }
+
+    /**
+     * Returns the ids of the set, in no order. The set must not change
+     * while they are walked.
+     * @return The iterator.
+     */
+    @Override
+    public Iterator<ObjectId> iterator() {
+        return new Iterator<ObjectId>() {
+            private int _next = advance(0);
+
+            @Override
+            public boolean hasNext() {
+                return _next < _used.length;
+            }
+
+            @Override
+            public ObjectId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ObjectId id = idAt(_next);
+                _next = advance(_next + 1);
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Puts an id in its slot unless it is there already, growing the
+     * table first if it is half full.
+     * @param id The id.
+     * @return The slot of the id.
+     */
+    int insert(ObjectId id) {
+        if (2 * (_size + 1) > _used.length) {
+            resize(2 * _used.length);
+        }
+        int i = slot(id.a(), id.b(), id.c());
+        if (!_used[i]) {
+            _a[i] = id.a();
+            _b[i] = id.b();
+            _c[i] = id.c();
+            _used[i] = true;
+            _size += 1;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the slot of an id.
+     * @param a Bytes 0 to 7 of the id.
+     * @param b Bytes 8 to 15 of the id.
+     * @param c Bytes 16 to 19 of the id.
+     * @return The slot holding it, or the empty slot it would go in.
+     */
+    int slot(long a, long b, int c) {
+        int mask = _used.length - 1;
+        int i = (int) (a ^ (a >>> 32)) & mask;
+        while (_used[i] && (_a[i] != a || _b[i] != b || _c[i] != c)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the id in a slot.
+     * @param i The slot, which must hold an id.
+     * @return The id.
+     */
+    ObjectId idAt(int i) {
+        return new ObjectId(_a[i], _b[i], _c[i]);
+    }
+
+    /**
+     * Moves every id to a table of the given number of slots.
+     * @param slots The number of slots, a power of two.
+     */
+    void resize(int slots) {
+        long[] a = _a;
+        long[] b = _b;
+        int[] c = _c;
+        boolean[] used = _used;
+        allocate(slots);
+        for (int i = 0; i < used.length; i += 1) {
+            if (used[i]) {
+                int j = slot(a[i], b[i], c[i]);
+                _a[j] = a[i];
+                _b[j] = b[i];
+                _c[j] = c[i];
+                _used[j] = true;
+                moved(i, j);
+            }
+        }
+    }
+
+    /**
+     * Called by resize as it moves the id of an old slot to a new slot,
+     * for subclasses keeping more per slot.
+     * @param from The old slot.
+     * @param to The new slot.
+     */
+    void moved(int from, int to) {
+    }
+
+    /**
+     * Returns the number of slots of the table.
+     * @return The number of slots.
+     */
+    int slots() {
+        return _used.length;
+    }
+
+    /**
+     * Starts an empty table, keeping the count of ids.
+     * @param slots The number of slots.
+     */
+    private void allocate(int slots) {
+        _a = new long[slots];
+        _b = new long[slots];
+        _c = new int[slots];
+        _used = new boolean[slots];
+    }
+
+    /**
+     * Returns the first slot holding an id from the given one on.
+     * @param from The slot to look from.
+     * @return The slot, or the number of slots if none.
+     */
+    private int advance(int from) {
+        int i = from;
+        while (i < _used.length && !_used[i]) {
+            i += 1;
+        }
+        return i;
+    }
+}
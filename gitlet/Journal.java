@@ -0,0 +1,591 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only segment new objects are written to, so that storing
+ * the objects of a commit is a few writes at the end of one file and
+ * not a file created per object. The segment starts with a header
+ * laid out like that of a pack; each record is a small header, the
+ * folder byte, the 20 id bytes, the length and a CRC-32 of all of
+ * these and the stored bytes, followed by the stored bytes of the
+ * object.
+ *
+ * The records of the segment are indexed in memory by reading them
+ * when it is first used, up to the first whose checksum does not
+ * match. Appending locks the segment against other processes, reads
+ * the records they appended since, drops a tail cut short by a crash
+ * and writes at the end, so no process writes over another's records.
+ * Once the segment passes SEAL_BYTES it is sealed: it is marked sealed
+ * in its header, an index is written for it and it is moved among the
+ * packs, where it is read like any other pack, and a new segment is
+ * started. A process that finds the segment it had open sealed lets go
+ * of it for the new one. A segment written by an older gitlet, without
+ * checksums, is sealed as it is before anything is appended.
+ * @author Yu Xi Gui
+ */
+class Journal {
+    /**The segment being appended to, in the gitlet directory.*/
+    static final String SEGMENT = "journal";
+    /**The magic number heading a segment.*/
+    static final int MAGIC = 0x474a4e31;
+    /**The name sealed segments start with among the packs.*/
+    static final String SEALED = "journal-";
+    /**The version of segment written.*/
+    static final int VERSION = 2;
+    /**The number of bytes of a record header.*/
+    static final int RECORD = 1 + Pack.ID_BYTES + 4 + 4;
+    /**The number of bytes of a record header in a version 1 segment,
+     * which has no checksum.*/
+    static final int RECORD_V1 = 1 + Pack.ID_BYTES + 4;
+    /**Where the header of a segment tells if it was sealed.*/
+    static final int SEALED_AT = 8;
+    /**The size past which the segment is sealed.*/
+    static final long SEAL_BYTES = 8L << 20;
+
+    /**The journals opened so far, by gitlet directory.*/
+    private static HashMap<String, Journal> _open = new HashMap<>();
+
+    /**The gitlet directory.*/
+    private final String _gitlet;
+    /**The segment file.*/
+    private final Path _file;
+    /**The channel of the segment, or null if there is no segment.*/
+    private FileChannel _channel;
+    /**Maps the ids of the records to their folder, offset and length.*/
+    private TreeMap<String, long[]> _index = new TreeMap<>();
+    /**Where the next record is written.*/
+    private long _end;
+
+    /**
+     * The journal of the given gitlet directory.
+     * @param gitlet The gitlet directory.
+     */
+    private Journal(String gitlet) {
+        _gitlet = gitlet;
+        _file = Paths.get(gitlet, SEGMENT);
+    }
+
+    /**
+     * Returns the journal of the repository whose gitlet directory is
+     * given, reading the headers of its segment on first use.
+     * @param gitlet The gitlet directory.
+     * @return The journal.
+     */
+    static synchronized Journal of(String gitlet) {
+        Journal j = _open.get(gitlet);
+        if (j == null) {
+            j = new Journal(gitlet);
+            try {
+                j.load();
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+            _open.put(gitlet, j);
+        }
+        return j;
+    }
+
+    /**
+     * Reads the record headers of the segment, if there is one.
+     * @throws IOException
+     */
+    private void load() throws IOException {
+        if (!Files.exists(_file)) {
+            return;
+        }
+        _channel = FileChannel.open(_file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer header = header(_channel);
+        if (header != null && header.getInt(SEALED_AT) == 0) {
+            _end = scan(_channel, header.getInt(4), _index,
+                    Pack.PACK_HEADER);
+        }
+    }
+
+    /**
+     * Reads the header of a segment.
+     * @param channel The segment.
+     * @return The header, or null if the segment is shorter than one.
+     * @throws IOException
+     */
+    private static ByteBuffer header(FileChannel channel)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Pack.PACK_HEADER);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return null;
+            }
+        }
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("bad journal segment");
+        }
+        return header;
+    }
+
+    /**
+     * Reads the records of a segment from a given offset up to the
+     * first record that is not whole or whose checksum does not match,
+     * which a crash may have cut short.
+     * @param channel The segment.
+     * @param version The version of the segment.
+     * @param index Where to put the id, folder, offset and length of
+     *              each record.
+     * @param from Where the first record to read starts.
+     * @return Where the whole records end.
+     * @throws IOException
+     */
+    private static long scan(FileChannel channel, int version,
+                             TreeMap<String, long[]> index, long from)
+            throws IOException {
+        long size = channel.size();
+        int header = version == 1 ? RECORD_V1 : RECORD;
+        long at = from;
+        ByteBuffer record = ByteBuffer.allocate(header);
+        ByteBuffer data = ByteBuffer.allocate(0);
+        CRC32 crc = new CRC32();
+        byte[] id = new byte[Pack.ID_BYTES];
+        while (at + header <= size) {
+            record.clear();
+            readFully(channel, record, at);
+            int length = record.getInt(1 + Pack.ID_BYTES);
+            if (length < 0 || at + header + length > size) {
+                break;
+            }
+            if (version != 1) {
+                if (data.capacity() < length) {
+                    data = ByteBuffer.allocate(length);
+                }
+                data.clear();
+                data.limit(length);
+                readFully(channel, data, at + header);
+                crc.reset();
+                crc.update(record.array(), 0, RECORD - 4);
+                crc.update(data.array(), 0, length);
+                if ((int) crc.getValue() != record.getInt(RECORD - 4)) {
+                    break;
+                }
+            }
+            record.position(1);
+            record.get(id);
+            index.put(Pack.toHex(id),
+                    new long[] {record.get(0), at + header, length});
+            at += header + length;
+        }
+        return at;
+    }
+
+    /**
+     * Fills a buffer from a channel.
+     * @param channel The channel.
+     * @param buf The buffer, filled up to its limit.
+     * @param at Where in the channel to start reading.
+     * @throws IOException
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+                                  long at) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, at + buf.position()) < 0) {
+                throw new IOException("truncated journal");
+            }
+        }
+    }
+
+    /**
+     * Appends objects to the segment in one write, skipping those it
+     * already has, forces them to disk and seals the segment if it grew
+     * past SEAL_BYTES. The segment is locked meanwhile.
+     * @param folder The folder of the objects.
+     * @param objects Maps hex ids to stored bytes.
+     * @throws IOException
+     */
+    synchronized void append(String folder, Map<String, byte[]> objects)
+            throws IOException {
+        int kind = kindOf(folder);
+        if (_index.keySet().containsAll(objects.keySet())) {
+            return;
+        }
+        FileLock lock = lock();
+        try {
+            int size = 0;
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                if (!_index.containsKey(e.getKey())) {
+                    size += RECORD + e.getValue().length;
+                }
+            }
+            if (size == 0) {
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            CRC32 crc = new CRC32();
+            long at = _end;
+            for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+                if (_index.containsKey(e.getKey())) {
+                    continue;
+                }
+                byte[] data = e.getValue();
+                int start = buf.position();
+                buf.put((byte) kind);
+                buf.put(Pack.toBytes(e.getKey()));
+                buf.putInt(data.length);
+                crc.reset();
+                crc.update(buf.array(), start, RECORD - 4);
+                crc.update(data);
+                buf.putInt((int) crc.getValue());
+                buf.put(data);
+                _index.put(e.getKey(), new long[] {kind, at + RECORD,
+                    data.length});
+                at += RECORD + data.length;
+            }
+            buf.flip();
+            long pos = _end;
+            while (buf.hasRemaining()) {
+                pos += _channel.write(buf, pos);
+            }
+            _channel.force(false);
+            _end = at;
+            if (_end >= SEAL_BYTES) {
+                seal();
+            }
+        } finally {
+            if (lock.isValid()) {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Opens the segment, starting one if there is none, and locks it,
+     * then reads the records other processes appended since it was last
+     * read and cuts off a tail a crash left that is not a whole record.
+     * A segment sealed by another process meanwhile is let go of for
+     * the one after it, and one of an older version is sealed.
+     * @return The lock, to be released once done with the segment.
+     * @throws IOException
+     */
+    private FileLock lock() throws IOException {
+        while (true) {
+            if (_channel == null) {
+                _channel = FileChannel.open(_file, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                _index = new TreeMap<>();
+                _end = 0;
+            }
+            FileLock lock = _channel.lock();
+            ByteBuffer header = header(_channel);
+            if (header == null) {
+                start();
+            } else if (header.getInt(SEALED_AT) != 0) {
+                close();
+                Pack.forget(_gitlet);
+                continue;
+            } else if (header.getInt(4) != VERSION) {
+                _index = new TreeMap<>();
+                _end = scan(_channel, header.getInt(4), _index,
+                        Pack.PACK_HEADER);
+                seal();
+                continue;
+            }
+            _end = scan(_channel, VERSION, _index,
+                    Math.max(_end, Pack.PACK_HEADER));
+            if (_channel.size() > _end) {
+                _channel.truncate(_end);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Appends one object to the segment.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @param data The stored bytes.
+     * @throws IOException
+     */
+    void append(String folder, String id, byte[] data) throws IOException {
+        HashMap<String, byte[]> one = new HashMap<>();
+        one.put(id, data);
+        append(folder, one);
+    }
+
+    /**
+     * Returns the stored bytes of the object with the given id if the
+     * segment has it in the given folder.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return The stored bytes, or null if not here.
+     * @throws IOException
+     */
+    synchronized byte[] read(String folder, String id) throws IOException {
+        long[] entry = _index.get(id);
+        if (entry == null || !Pack.FOLDERS[(int) entry[0]].equals(folder)) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) entry[2]);
+        while (buf.hasRemaining()) {
+            if (_channel.read(buf, entry[1] + buf.position()) < 0) {
+                throw new IOException("truncated journal");
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Returns the number of stored bytes of an object of the segment.
+     * @param id The hex id.
+     * @return The length, or 0 if the segment does not have it.
+     */
+    synchronized int length(String id) {
+        long[] entry = _index.get(id);
+        return entry == null ? 0 : (int) entry[2];
+    }
+
+    /**
+     * Tells if the segment has the object with the given id.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is here.
+     */
+    synchronized boolean has(String folder, String id) {
+        long[] entry = _index.get(id);
+        return entry != null && Pack.FOLDERS[(int) entry[0]].equals(folder);
+    }
+
+    /**
+     * Lists the ids of the objects of the segment in a folder.
+     * @param folder The folder.
+     * @return The hex ids, in id order.
+     */
+    synchronized ArrayList<String> ids(String folder) {
+        ArrayList<String> result = new ArrayList<>();
+        int kind = kindOf(folder);
+        for (Map.Entry<String, long[]> e : _index.entrySet()) {
+            if (e.getValue()[0] == kind) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the ids of the objects of the segment in a folder that start
+     * with a prefix to a set, until it holds LIMIT ids.
+     * @param folder The folder.
+     * @param prefix The start of the ids.
+     * @param limit The size the set may reach.
+     * @param result The set.
+     */
+    synchronized void matching(String folder, String prefix, int limit,
+                               Set<String> result) {
+        int kind = kindOf(folder);
+        for (Map.Entry<String, long[]> e
+                : _index.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix) || result.size() >= limit) {
+                break;
+            }
+            if (e.getValue()[0] == kind) {
+                result.add(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the segment.
+     * @return The bytes it takes, or 0 if there is no segment.
+     * @throws IOException
+     */
+    long size() throws IOException {
+        return Files.exists(_file) ? Files.size(_file) : 0;
+    }
+
+    /**
+     * Returns when the segment was last written to.
+     * @return Epoch millis, or 0 if there is no segment.
+     * @throws IOException
+     */
+    long lastModified() throws IOException {
+        return Files.exists(_file)
+                ? Files.getLastModifiedTime(_file).toMillis() : 0;
+    }
+
+    /**
+     * Drops the segment, once the objects it had when last read have
+     * been written elsewhere. If another process appended to it since,
+     * it is sealed instead, so that what it appended is kept.
+     * @throws IOException
+     */
+    synchronized void clear() throws IOException {
+        if (!Files.exists(_file)) {
+            close();
+            _index = new TreeMap<>();
+            _end = 0;
+            return;
+        }
+        int copied = _channel == null ? 0 : _index.size();
+        FileLock lock = lock();
+        try {
+            if (_index.size() > copied) {
+                seal();
+            } else {
+                drop();
+            }
+        } finally {
+            if (lock.isValid()) {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Removes the segment, which must be locked, marking it sealed first
+     * for other processes that have it open to let go of it, then
+     * starts afresh.
+     * @throws IOException
+     */
+    private void drop() throws IOException {
+        markSealed();
+        Files.deleteIfExists(_file);
+        close();
+        _index = new TreeMap<>();
+        _end = 0;
+    }
+
+    /**
+     * Seals the segment, which must be locked: marks it sealed, writes
+     * an index for it and moves both among the packs, the index last,
+     * then starts afresh. A segment holding no records is dropped
+     * instead, so it is never left open and locked.
+     * @throws IOException
+     */
+    private void seal() throws IOException {
+        if (_index.isEmpty()) {
+            drop();
+            return;
+        }
+        _channel.truncate(_end);
+        markSealed();
+        File dir = Utils.join(_gitlet, Pack.DIR);
+        dir.mkdirs();
+        String name = SEALED + Long.toHexString(System.currentTimeMillis());
+        while (Utils.join(dir, name + Pack.INDEX_SUFFIX).exists()) {
+            name += "x";
+        }
+        File index = Utils.join(dir, name + Pack.INDEX_SUFFIX + ".tmp");
+        Pack.writeIndex(index, _index);
+        Files.move(_file, Utils.join(dir, name + Pack.PACK_SUFFIX).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.move(index.toPath(),
+                Utils.join(dir, name + Pack.INDEX_SUFFIX).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        close();
+        Pack.forget(_gitlet);
+        _index = new TreeMap<>();
+        _end = 0;
+    }
+
+    /**
+     * Writes the index of any segment moved among the packs by a seal
+     * that died before writing it.
+     * @param gitlet The gitlet directory.
+     * @throws IOException
+     */
+    static void recover(String gitlet) throws IOException {
+        Path dir = Paths.get(gitlet, Pack.DIR);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> packs = Files.newDirectoryStream(dir,
+                SEALED + "*" + Pack.PACK_SUFFIX)) {
+            for (Path p : packs) {
+                String name = p.getFileName().toString();
+                Path index = p.resolveSibling(name.substring(0,
+                        name.length() - Pack.PACK_SUFFIX.length())
+                        + Pack.INDEX_SUFFIX);
+                if (Files.exists(index)) {
+                    continue;
+                }
+                TreeMap<String, long[]> entries = new TreeMap<>();
+                try (FileChannel channel = FileChannel.open(p)) {
+                    ByteBuffer header = header(channel);
+                    if (header == null) {
+                        throw new IOException("bad journal segment");
+                    }
+                    scan(channel, header.getInt(4), entries,
+                            Pack.PACK_HEADER);
+                }
+                File temp = new File(index + ".tmp");
+                Pack.writeIndex(temp, entries);
+                Files.move(temp.toPath(), index,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Pack.forget(gitlet);
+            }
+        }
+    }
+
+    /**
+     * Writes the header of a new segment, which must be locked.
+     * @throws IOException
+     */
+    private void start() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Pack.PACK_HEADER);
+        header.putInt(MAGIC).putInt(VERSION).putInt(0).flip();
+        _channel.truncate(0);
+        _channel.write(header, 0);
+        _channel.force(false);
+        _index = new TreeMap<>();
+        _end = Pack.PACK_HEADER;
+    }
+
+    /**
+     * Marks the segment, which must be locked, sealed in its header, for
+     * other processes that have it open to let go of it.
+     * @throws IOException
+     */
+    private void markSealed() throws IOException {
+        ByteBuffer flag = ByteBuffer.allocate(4);
+        flag.putInt(1).flip();
+        _channel.write(flag, SEALED_AT);
+        _channel.force(false);
+    }
+
+    /**
+     * Closes the channel of the segment, if open.
+     * @throws IOException
+     */
+    private void close() throws IOException {
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    /**
+     * Returns the folder byte of an object folder.
+     * @param folder The folder.
+     * @return Its index in Pack.FOLDERS.
+     */
+    private static int kindOf(String folder) {
+        for (int k = 0; k < Pack.FOLDERS.length; k += 1) {
+            if (Pack.FOLDERS[k].equals(folder)) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("not an object folder " + folder);
+    }
+}
@@ -0,0 +1,417 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Upgrades a repository written by the first version of gitlet, which
+ * kept tree.bin, stage.bin and every object as a Java serialization of
+ * its class, each object in a file of its folder named by its id.
+ *
+ * The old classes are read into stand-ins of the same fields, and only
+ * those, HashMaps and Strings are let through the stream. Blobs were
+ * named by a hash of their file name and content, and commits by a
+ * hash of their parent, message and paths, so every object gets a new
+ * id: blobs are stored again by content, the files of each commit are
+ * written as trees, and commits are made again parents first, keeping
+ * their times and messages. The stage is written as an index, and
+ * tree.bin is replaced last; until then the old files are all still
+ * there, so an upgrade cut short is done again from the start. The old
+ * object files are removed after, before their folders are sharded.
+ * @author Yu Xi Gui
+ */
+final class Legacy {
+    /**The first two bytes of a Java serialization stream.*/
+    static final int MAGIC = 0xaced;
+    /**The time of the initial commit, as the old commits wrote it.*/
+    static final String EPOCH = "Thu Jan 01 00:00:00 1970 -0800";
+    /**The folders older versions kept objects in.*/
+    private static final String[] FOLDERS = {".blobs", ".commits",
+        Stage.TEMP_BLOBS};
+    /**The stand-ins for the old classes, by the names they were
+     * written under.*/
+    private static final HashMap<String, Class<?>> STANDINS =
+            new HashMap<>();
+    /**What may be read from an old file.*/
+    private static final ObjectInputFilter FILTER =
+            ObjectInputFilter.Config.createFilter("maxdepth=8;"
+                    + "gitlet.Legacy$*;java.util.HashMap;java.util.Map$Entry;"
+                    + "java.lang.String;!*");
+
+    static {
+        STANDINS.put("gitlet.Blob", OldBlob.class);
+        STANDINS.put("gitlet.Commit", OldCommit.class);
+        STANDINS.put("gitlet.CommitTree", OldTree.class);
+        STANDINS.put("gitlet.Stage", OldStage.class);
+    }
+
+    /**Not to be made.*/
+    private Legacy() {
+    }
+
+    /**
+     * Tells if stored bytes are a Java serialization.
+     * @param data The bytes.
+     * @return True if they start with its magic number.
+     */
+    static boolean is(byte[] data) {
+        return data.length >= 2
+                && ((data[0] & 0xff) << 8 | data[1] & 0xff) == MAGIC;
+    }
+
+    /**
+     * Upgrades the repository in a gitlet directory if it was written
+     * by the first version of gitlet, and removes the old object files
+     * an upgrade left. Repositories whose objects are sharded were
+     * written since, and are not looked at.
+     * @param gitlet The gitlet directory.
+     * @throws IOException
+     */
+    static void migrate(String gitlet) throws IOException {
+        if (Files.exists(Paths.get(gitlet, Loose.MARKER))) {
+            return;
+        }
+        Path tree = Paths.get(gitlet, "tree.bin");
+        if (Files.isRegularFile(tree) && is(head(tree))) {
+            upgrade(gitlet);
+            System.err.println("Upgraded the repository from the first "
+                    + "gitlet format; commit ids have changed.");
+        }
+        for (String folder : FOLDERS) {
+            File[] files = Paths.get(gitlet, folder).toFile()
+                    .listFiles(File::isFile);
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (is(head(f.toPath()))) {
+                    Files.delete(f.toPath());
+                }
+            }
+        }
+        Path staged = Paths.get(gitlet, Stage.TEMP_BLOBS);
+        File[] left = staged.toFile().listFiles();
+        if (left != null && left.length == 0) {
+            Files.delete(staged);
+        }
+    }
+
+    /**
+     * Stores the objects of an old repository again, writes its stage
+     * as an index, then replaces its tree.bin.
+     * @param gitlet The gitlet directory.
+     * @throws IOException
+     */
+    private static void upgrade(String gitlet) throws IOException {
+        ObjectStore store = ObjectStore.of(gitlet);
+        HashMap<String, String> blobs = new HashMap<>();
+        for (String folder : new String[] {".blobs", Stage.TEMP_BLOBS}) {
+            for (Map.Entry<String, Object> e : read(gitlet, folder)
+                    .entrySet()) {
+                OldBlob old = (OldBlob) e.getValue();
+                Blob blob = new Blob(old._content == null ? new byte[0]
+                        : old._content.getBytes(StandardCharsets.UTF_8));
+                String id = blob.getBlobname();
+                if (!store.has(".blobs", id)) {
+                    store.write(".blobs", id, Main.encode(blob, true));
+                }
+                blobs.put(e.getKey(), id);
+            }
+        }
+        HashMap<String, OldCommit> old = new HashMap<>();
+        for (Map.Entry<String, Object> e : read(gitlet, ".commits")
+                .entrySet()) {
+            old.put(e.getKey(), (OldCommit) e.getValue());
+        }
+        HashMap<String, String> commits = new HashMap<>();
+        for (String id : old.keySet()) {
+            upgrade(store, id, old, blobs, commits);
+        }
+        OldTree t = (OldTree) readObject(
+                Files.readAllBytes(Paths.get(gitlet, "tree.bin")));
+        HashMap<String, String> branches = new HashMap<>();
+        for (Map.Entry<String, String> e : t._branches.entrySet()) {
+            branches.put(e.getKey(), renamed(commits, e.getValue()));
+        }
+        CommitTree tree = new CommitTree(t._head, branches,
+                t._remote == null ? new HashMap<>() : t._remote);
+        Path stageFile = Paths.get(gitlet, "stage.bin");
+        byte[] data = Files.exists(stageFile)
+                ? Files.readAllBytes(stageFile) : new byte[0];
+        if (is(data)) {
+            OldStage s = (OldStage) readObject(data);
+            Stage stage = new Stage();
+            stage.setBlobs((Commit) Main.decode(store.read(".commits",
+                    branches.get(t._head))));
+            for (Map.Entry<String, String> e : s.addToStage.entrySet()) {
+                stage.getAddToStage().put(e.getKey(),
+                        renamed(blobs, e.getValue()));
+            }
+            for (Map.Entry<String, String> e : s.removedStage.entrySet()) {
+                stage.getRemovedStage().put(e.getKey(),
+                        e.getValue() == null ? null
+                                : renamed(blobs, e.getValue()));
+            }
+            stage.save(gitlet);
+        }
+        Main.writeAtomically(gitlet, Paths.get(gitlet, "tree.bin"),
+                Main.encode(tree, false));
+    }
+
+    /**
+     * Makes a commit again, after its parents, under its new id.
+     * Parents are followed with a stack, as a history may be longer
+     * than the call stack is deep.
+     * @param store The store of the repository.
+     * @param id The old id of the commit.
+     * @param old The old commits, by old id.
+     * @param blobs The new ids of the old blobs.
+     * @param commits The new ids of the commits made again so far.
+     * @throws IOException
+     */
+    private static void upgrade(ObjectStore store, String id,
+                                HashMap<String, OldCommit> old,
+                                HashMap<String, String> blobs,
+                                HashMap<String, String> commits)
+            throws IOException {
+        ArrayDeque<String> todo = new ArrayDeque<>();
+        todo.push(id);
+        while (!todo.isEmpty()) {
+            String next = todo.peek();
+            OldCommit c = old.get(next);
+            if (commits.containsKey(next)) {
+                todo.pop();
+                continue;
+            } else if (c == null) {
+                throw new IOException("missing commit " + next);
+            }
+            boolean ready = true;
+            for (String p : new String[] {c._parent, c._parent2}) {
+                if (p != null && !p.isEmpty() && !commits.containsKey(p)) {
+                    todo.push(p);
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            todo.pop();
+            HashMap<String, String> files = new HashMap<>();
+            if (c._blobs != null) {
+                for (Map.Entry<String, String> e : c._blobs.entrySet()) {
+                    files.put(e.getKey(), renamed(blobs, e.getValue()));
+                }
+            }
+            String tree = Tree.update("", files,
+                    Collections.<String>emptySet());
+            Commit made = new Commit(parent(commits, c._parent),
+                    parent(commits, c._parent2), millis(c._time),
+                    c._commitMessage, tree);
+            store.write(".commits", made.getId(), Main.encode(made, true));
+            commits.put(next, made.getId());
+        }
+    }
+
+    /**
+     * Returns the new id of an old parent.
+     * @param commits The new ids of the commits made again.
+     * @param id The old id, or the empty string for none.
+     * @return The new id, or the empty string for none.
+     */
+    private static String parent(HashMap<String, String> commits,
+                                 String id) {
+        return id == null || id.isEmpty() ? "" : commits.get(id);
+    }
+
+    /**
+     * Returns the new id of an old object.
+     * @param ids The new ids, by old id.
+     * @param id The old id.
+     * @return The new id.
+     * @throws IOException If the object was never stored.
+     */
+    private static String renamed(HashMap<String, String> ids, String id)
+            throws IOException {
+        String result = ids.get(id);
+        if (result == null) {
+            throw new IOException("missing object " + id);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time of an old commit as a number.
+     * @param time The time, as the old commits wrote it.
+     * @return Milliseconds since the epoch.
+     * @throws IOException If it cannot be read.
+     */
+    private static long millis(String time) throws IOException {
+        if (time == null || time.isEmpty() || time.equals(EPOCH)) {
+            return 0;
+        }
+        try {
+            return new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy")
+                    .parse(time.substring(0, time.lastIndexOf(' ')))
+                    .getTime();
+        } catch (ParseException | StringIndexOutOfBoundsException e) {
+            throw new IOException("bad commit time " + time);
+        }
+    }
+
+    /**
+     * Reads the old objects kept directly in a folder.
+     * @param gitlet The gitlet directory.
+     * @param folder The folder.
+     * @return The objects, by old id.
+     * @throws IOException
+     */
+    private static HashMap<String, Object> read(String gitlet, String folder)
+            throws IOException {
+        HashMap<String, Object> result = new HashMap<>();
+        File[] files = Paths.get(gitlet, folder).toFile()
+                .listFiles(File::isFile);
+        if (files != null) {
+            for (File f : files) {
+                byte[] data = Files.readAllBytes(f.toPath());
+                if (is(data)) {
+                    result.put(f.getName(), readObject(data));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first bytes of a file.
+     * @param file The file.
+     * @return Up to two bytes.
+     * @throws IOException
+     */
+    private static byte[] head(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.readNBytes(2);
+        }
+    }
+
+    /**
+     * Reads an old object into its stand-in.
+     * @param data The serialization.
+     * @return The stand-in.
+     * @throws IOException If it is not one of the old classes.
+     */
+    private static Object readObject(byte[] data) throws IOException {
+        try (ObjectInputStream in = new Input(data)) {
+            return in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("unreadable old object: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * A stream that reads each old class into its stand-in.
+     */
+    private static class Input extends ObjectInputStream {
+        /**
+         * A stream over a serialization.
+         * @param data The serialization.
+         * @throws IOException
+         */
+        Input(byte[] data) throws IOException {
+            super(new ByteArrayInputStream(data));
+            setObjectInputFilter(FILTER);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor()
+                throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            Class<?> standin = STANDINS.get(desc.getName());
+            return standin == null ? desc : ObjectStreamClass.lookup(standin);
+        }
+    }
+
+    /**
+     * The fields of an old blob.
+     */
+    private static class OldBlob implements Serializable {
+        /**Not checked, the stream's own class being read.*/
+        private static final long serialVersionUID = 1L;
+        /**The name of the file it was added from.*/
+        private String _filename;
+        /**Its content, read as a string.*/
+        private String _content;
+        /**Its old id.*/
+        private String _blobName;
+    }
+
+    /**
+     * The fields of an old commit.
+     */
+    private static class OldCommit implements Serializable {
+        /**Not checked, the stream's own class being read.*/
+        private static final long serialVersionUID = 1L;
+        /**Its old id.*/
+        private String _hashvalue;
+        /**The old id of its first parent, or the empty string.*/
+        private String _parent;
+        /**Its time, as a string.*/
+        private String _time;
+        /**Its message.*/
+        private String _commitMessage;
+        /**The old ids of its blobs, by path.*/
+        private HashMap<String, String> _blobs;
+        /**The old id of its second parent, or the empty string.*/
+        private String _parent2;
+    }
+
+    /**
+     * The fields of an old commit tree.
+     */
+    private static class OldTree implements Serializable {
+        /**Not checked, the stream's own class being read.*/
+        private static final long serialVersionUID = 1L;
+        /**The cur branch.*/
+        private String _head;
+        /**The old ids of the branches, by name.*/
+        private HashMap<String, String> _branches;
+        /**The remotes, by name.*/
+        private HashMap<String, String> _remote;
+    }
+
+    /**
+     * The fields of an old stage.
+     */
+    private static class OldStage implements Serializable {
+        /**Not checked, the stream's own class being read.*/
+        private static final long serialVersionUID = 1L;
+        /**The old ids of the blobs staged, by path.*/
+        private HashMap<String, String> addToStage;
+        /**The old ids of the blobs staged for removal, by path.*/
+        private HashMap<String, String> removedStage;
+        /**Files that are untracked.*/
+        private HashMap<String, String> untracked;
+        /**Files tracked that are modified.*/
+        private HashMap<String, String> trackModified;
+        /**Files tracked that are deleted.*/
+        private HashMap<String, String> trackDelete;
+        /**The old ids of the head commit's blobs, by path.*/
+        private HashMap<String, String> _currBlobs;
+    }
+}
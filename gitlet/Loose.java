@@ -0,0 +1,301 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Where loose objects live. Each object folder is split into shards
+ * named by the first two hex digits of the ids they hold, so that no
+ * single directory grows past a few thousand entries.
+ * @author Yu Xi Gui
+ */
+class Loose {
+    /**The file whose presence tells a repository's objects are sharded.*/
+    static final String MARKER = "sharded";
+    /**The number of id characters naming a shard.*/
+    static final int SHARD = 2;
+    /**The directory objects are written in before being moved into
+     * place.*/
+    static final String TEMP = "tmp";
+
+    /**
+     * Returns the path of the loose object with the given id.
+     * @param gitlet The gitlet directory.
+     * @param folder The object folder.
+     * @param id The hex id.
+     * @return The path, whether or not the object exists.
+     */
+    static Path path(String gitlet, String folder, String id) {
+        if (id.length() <= SHARD) {
+            return Paths.get(gitlet, folder, id);
+        }
+        return Paths.get(gitlet, folder, id.substring(0, SHARD),
+                id.substring(SHARD));
+    }
+
+    /**
+     * Returns the path a loose object was kept at before objects were
+     * sharded. Repositories not yet migrated, such as remotes, still
+     * keep them there.
+     * @param gitlet The gitlet directory.
+     * @param folder The object folder.
+     * @param id The hex id.
+     * @return The path.
+     */
+    static Path flatPath(String gitlet, String folder, String id) {
+        return Paths.get(gitlet, folder, id);
+    }
+
+    /**
+     * Finds the loose object with the given id, sharded or not.
+     * @param gitlet The gitlet directory.
+     * @param folder The object folder.
+     * @param id The hex id.
+     * @return The path of the object, or null if it is not loose.
+     */
+    static Path find(String gitlet, String folder, String id) {
+        Path p = path(gitlet, folder, id);
+        if (Files.isRegularFile(p)) {
+            return p;
+        }
+        p = flatPath(gitlet, folder, id);
+        if (Files.isRegularFile(p)) {
+            return p;
+        }
+        return null;
+    }
+
+    /**
+     * Creates an empty file to write an object in before it is renamed
+     * to its path. It is kept in the gitlet directory, so the rename
+     * stays on one file system and readers never see half an object.
+     * @param gitlet The gitlet directory.
+     * @return The path of the new file.
+     * @throws IOException
+     */
+    static Path temp(String gitlet) throws IOException {
+        Path dir = Paths.get(gitlet, TEMP);
+        Files.createDirectories(dir);
+        return Files.createTempFile(dir, "obj", null);
+    }
+
+    /**
+     * Deletes a loose object file, and its shard directory if that
+     * leaves the shard empty.
+     * @param file The path of the object.
+     * @throws IOException
+     */
+    static void delete(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        Path shard = file.getParent();
+        if (shard.getFileName().toString().length() == SHARD) {
+            try (DirectoryStream<Path> rest = Files.newDirectoryStream(shard)) {
+                if (!rest.iterator().hasNext()) {
+                    Files.deleteIfExists(shard);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves every loose object kept directly in an object folder into
+     * its shard, then leaves the marker so this is done only once.
+     * @param gitlet The gitlet directory.
+     * @param folders The object folders.
+     * @throws IOException
+     */
+    static void migrate(String gitlet, String... folders) throws IOException {
+        Path marker = Paths.get(gitlet, MARKER);
+        if (Files.exists(marker)) {
+            return;
+        }
+        for (String folder : folders) {
+            Path dir = Paths.get(gitlet, folder);
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) {
+                    if (Files.isRegularFile(f)) {
+                        String id = f.getFileName().toString();
+                        Path to = path(gitlet, folder, id);
+                        Files.createDirectories(to.getParent());
+                        Files.move(f, to,
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        }
+        Files.createFile(marker);
+    }
+
+    /**
+     * Adds the ids of the loose objects in a folder that start with a
+     * prefix to a set, until it holds LIMIT ids. Only the shard the
+     * prefix names is read, and the objects not yet moved into a
+     * shard; a prefix shorter than a shard name reads them all.
+     * @param gitlet The gitlet directory.
+     * @param folder The object folder.
+     * @param prefix The start of the ids.
+     * @param limit The size the set may reach.
+     * @param result The set.
+     * @throws IOException
+     */
+    static void matching(String gitlet, String folder, String prefix,
+                         int limit, Set<String> result) throws IOException {
+        if (prefix.length() < SHARD) {
+            for (String id : ids(gitlet, folder)) {
+                if (result.size() >= limit) {
+                    return;
+                }
+                if (id.startsWith(prefix)) {
+                    result.add(id);
+                }
+            }
+            return;
+        }
+        Path shard = Paths.get(gitlet, folder, prefix.substring(0, SHARD));
+        if (Files.isDirectory(shard)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                    shard, prefix.substring(SHARD) + "*")) {
+                for (Path f : files) {
+                    if (result.size() >= limit) {
+                        return;
+                    }
+                    result.add(prefix.substring(0, SHARD)
+                            + f.getFileName());
+                }
+            }
+        }
+        Path dir = Paths.get(gitlet, folder);
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+                    prefix + "*")) {
+                for (Path f : files) {
+                    if (result.size() >= limit) {
+                        return;
+                    }
+                    if (Files.isRegularFile(f)) {
+                        result.add(f.getFileName().toString());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the ids of the loose objects in a folder lazily, one shard
+     * at a time, so the folder is never read whole into memory. Objects
+     * not yet moved into a shard are listed too.
+     * @param gitlet The gitlet directory.
+     * @param folder The object folder.
+     * @return The ids.
+     */
+    static Iterable<String> ids(String gitlet, String folder) {
+        return () -> new Walker(Paths.get(gitlet, folder));
+    }
+
+    /**
+     * An iterator over the ids of the loose objects in a folder, reading
+     * one shard directory at a time.
+     */
+    private static class Walker implements Iterator<String> {
+        /**The entries of the object folder.*/
+        private DirectoryStream<Path> _top;
+        /**The iterator over the entries of the object folder.*/
+        private Iterator<Path> _shards;
+        /**The entries of the shard being walked, or null.*/
+        private DirectoryStream<Path> _shard;
+        /**The iterator over the shard being walked, or null.*/
+        private Iterator<Path> _files;
+        /**The name of the shard being walked.*/
+        private String _prefix;
+        /**The next id to return, or null if not found yet.*/
+        private String _next;
+
+        /**
+         * Starts walking the given folder.
+         * @param dir The object folder.
+         */
+        Walker(Path dir) {
+            try {
+                if (Files.isDirectory(dir)) {
+                    _top = Files.newDirectoryStream(dir);
+                    _shards = _top.iterator();
+                }
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (_next == null && _shards != null) {
+                if (_files != null && _files.hasNext()) {
+                    Path f = _files.next();
+                    if (Files.isRegularFile(f)) {
+                        _next = _prefix + f.getFileName();
+                    }
+                } else if (_shards.hasNext()) {
+                    closeShard();
+                    Path p = _shards.next();
+                    if (Files.isDirectory(p)) {
+                        try {
+                            _shard = Files.newDirectoryStream(p);
+                            _files = _shard.iterator();
+                            _prefix = p.getFileName().toString();
+                        } catch (IOException e) {
+                            System.out.println("IOException: "
+                                    + e.getMessage());
+                        }
+                    } else if (Files.isRegularFile(p)) {
+                        _next = p.getFileName().toString();
+                    }
+                } else {
+                    closeShard();
+                    close(_top);
+                    _shards = null;
+                }
+            }
+            return _next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String result = _next;
+            _next = null;
+            return result;
+        }
+
+        /**Closes the shard being walked, if any.*/
+        private void closeShard() {
+            close(_shard);
+            _shard = null;
+            _files = null;
+        }
+
+        /**
+         * Closes a directory stream, ignoring errors.
+         * @param stream The stream, or null.
+         */
+        private static void close(DirectoryStream<Path> stream) {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    System.out.println("IOException: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
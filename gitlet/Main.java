@@ -1,33 +1,48 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Map;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /** Driver class for Gitlet, the tiny stupid version-control system.
  *  @author Yu Xi Gui
  */
 public class Main {
-    /**The cur working directory.*/
-    static final String CWD = System.getProperty("user.dir");
+    /**The cur working directory. Only commands run in one process
+     * through run, such as tests, point it anywhere else.*/
+    static String CWD = System.getProperty("user.dir");
     /**The commitTree object serialized.*/
     private static CommitTree _tree = null;
     /**The stage object serialized.*/
     private static Stage _stage = null;
+    /**The commit trees of repositories kept in memory, by gitlet
+     * directory.*/
+    private static final HashMap<String, CommitTree> MEMORY_TREES =
+            new HashMap<>();
+    /**The stages of repositories kept in memory, by gitlet directory.*/
+    private static final HashMap<String, Stage> MEMORY_STAGES =
+            new HashMap<>();
+    /**The first byte of a zlib stream with a 32K window.*/
+    static final byte ZLIB_HEADER = 0x78;
 
     /**
      * Stage variable accessor method.
@@ -45,19 +60,56 @@ public class Main {
         return _tree;
     }
     /** Usage: java gitlet.Main ARGS, where ARGS contains
-     *  <COMMAND> <OPERAND> .... */
+     *  <COMMAND> <OPERAND> .... A repository kept in memory would be
+     *  lost as the command ends, so the memory store is refused here.*/
     public static void main(String... args) {
+        if (ObjectStore.inMemory()) {
+            System.out.println("The memory store is only for commands "
+                    + "run in one process.");
+            return;
+        }
+        run(args);
+        ObjectCache.report();
+    }
+
+    /**
+     * Runs one command in this process, as main does, without ending
+     * it. When the gitlet.store property is "memory", the commit tree
+     * and the stage are kept on the heap between calls, beside the
+     * objects, instead of being read from and written to the gitlet
+     * directory, so that commands can be run and timed many to a
+     * process without the repository touching the disk.
+     * @param args The command and its operands.
+     */
+    static void run(String... args) {
+        boolean memory = ObjectStore.inMemory();
+        _tree = null;
+        _stage = null;
         try {
-            if (Files.exists(Paths.get(CWD, ".gitlet").resolve("tree.bin"))) {
-                _tree = (CommitTree) readF("", "tree.bin");
-                _stage = (Stage) readF("", "stage.bin");
+            String common = Worktree.common(gitletDir());
+            if (memory) {
+                _tree = MEMORY_TREES.get(gitletDir());
+                _stage = MEMORY_STAGES.get(gitletDir());
+            } else if (Files.exists(Paths.get(common, "tree.bin"))) {
+                Legacy.migrate(common);
+                Loose.migrate(common, Pack.FOLDERS);
+                Journal.recover(common);
+                Stage.adoptStaged(gitletDir());
+                _tree = Worktree.readTree(gitletDir());
+                _stage = Stage.read(gitletDir());
+                if (_stage == null) {
+                    _stage = (Stage) readF("", "stage.bin");
+                }
+                _tree.markClean();
             }
 
             if (args.length < 1) {
                 throw new IllegalArgumentException("Please enter a command.");
             }
             List<String> list = Arrays.asList(args);
-            if (list.contains("add-remote") || list.contains("rm-remote")
+            if (args[0].equals("worktree")) {
+                worktree(args);
+            } else if (list.contains("add-remote") || list.contains("rm-remote")
                     || list.contains("pull") || list.contains("push")
                     || list.contains("fetch")) {
                 commandThree(args);
@@ -69,8 +121,16 @@ public class Main {
             } else {
                 commandsTwo(args);
             }
-            writeFile("", "tree.bin", _tree);
-            writeFile("", "stage.bin", _stage);
+            if (!memory) {
+                saveState(!args[0].equals("status"));
+            } else if (_tree != null) {
+                MEMORY_TREES.put(gitletDir(), _tree);
+                MEMORY_STAGES.put(gitletDir(), _stage);
+            }
+        } catch (Quit e) {
+            return;
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
         } catch (IllegalArgumentException e) {
             if (e.getMessage() != null) {
                 System.out.println(e.getMessage());
@@ -125,6 +185,9 @@ public class Main {
             if (args.length == 2) {
                 _tree.findCommits(args[1]);
                 break;
+            } else if (args.length == 3 && args[1].equals("--grep")) {
+                _tree.grepCommits(args[2]);
+                break;
             } else {
                 throw new IllegalArgumentException("Incorrect operands.");
             }
@@ -176,7 +239,7 @@ public class Main {
             }
         case "rm-branch":
             if (args.length == 2) {
-                _tree.deleteBranch(args[1]);
+                deleteBranch(args[1]);
                 break;
             } else {
                 throw new IllegalArgumentException("Incorrect operands.");
@@ -195,6 +258,30 @@ public class Main {
             } else {
                 throw new IllegalArgumentException("Incorrect operands.");
             }
+        case "repack":
+            if (args.length == 1) {
+                repack();
+                break;
+            } else {
+                throw new IllegalArgumentException("Incorrect operands.");
+            }
+        case "add-alternate":
+            if (args.length == 2) {
+                addAlternate(args[1]);
+                break;
+            } else {
+                throw new IllegalArgumentException("Incorrect operands.");
+            }
+        case "gc":
+            if (args.length == 1) {
+                Gc.run(Gc.GRACE);
+                break;
+            } else if (args.length == 2 && args[1].startsWith("--prune=")) {
+                Gc.run(Gc.parseGrace(args[1].substring("--prune=".length())));
+                break;
+            } else {
+                throw new IllegalArgumentException("Incorrect operands.");
+            }
         default:
             throw new IllegalArgumentException("No command "
                     + "with that name exists.");
@@ -276,6 +363,44 @@ public class Main {
 
     }
 
+    /**
+     * Does the add-alternate command: this repository will read the
+     * objects it lacks from the given one, and fetch and push will not
+     * copy the objects found there. Those objects are borrowed, not
+     * copied, so this repository is also listed in the other's
+     * borrowers file, and gc there keeps what this one still reaches.
+     * @param path The gitlet directory of the other repository.
+     */
+    public static void addAlternate(String path) {
+        Path dir = Paths.get(CWD).resolve(path.replace('/',
+                File.separatorChar)).toAbsolutePath().normalize();
+        if (!Files.isDirectory(dir)) {
+            System.out.println("Alternate directory not found.");
+            return;
+        }
+        try {
+            FileStore store = FileStore.of(Worktree.common(gitletDir()));
+            if (!store.addAlternate(dir.toString())) {
+                System.out.println("That alternate already exists.");
+            }
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Does the worktree commands.
+     * @param args User input.
+     * @throws IOException
+     */
+    public static void worktree(String[] args) throws IOException {
+        if (args.length == 4 && args[1].equals("add")) {
+            Worktree.add(args[2], args[3]);
+        } else {
+            throw new IllegalArgumentException("Incorrect operands.");
+        }
+    }
+
     /**
      * Removes the remove by given name.
      * @param remoteName The remote to remove.
@@ -308,18 +433,10 @@ public class Main {
         }
         if (remote.getBr().containsKey(remBrNa)) {
             Commit remotehead = readRemoteobj(
-                    Utils.join(_tree.getRemote().get(remName), ".commits",
-                            remote.getBr().get(remBrNa)));
+                    _tree.getRemote().get(remName),
+                    remote.getBr().get(remBrNa));
             Commit cur = _tree.getLastCommit();
-            Commit com = cur;
-            while (com != null
-                    && !com.getId().equals(remotehead.getId())) {
-                if (com.getParentOne().equals("")) {
-                    com = null;
-                } else {
-                    com = (Commit) readF(".commits", com.getParentOne());
-                }
-            }
+            Commit com = onFirstParents(cur, remotehead);
             if (com == null) {
                 System.out.println(
                         "Please pull down remote changes before pushing.");
@@ -331,14 +448,10 @@ public class Main {
         } else {
             remote.branch(remBrNa);
             Commit cur = _tree.getLastCommit();
-            Commit com = cur;
             Commit remotehead = readRemoteobj(
-                    Utils.join(_tree.getRemote().get(remName), ".commits",
-                            remote.getBr().get(remBrNa)));
-            while (com != null
-                    && !com.getId().equals(remotehead.getId())) {
-                com = (Commit) readF("/.commits", com.getParentOne());
-            }
+                    _tree.getRemote().get(remName),
+                    remote.getBr().get(remBrNa));
+            Commit com = onFirstParents(cur, remotehead);
             if (com == null) {
                 System.out.println(
                         "Please pull down remote changes before pushing.");
@@ -351,7 +464,26 @@ public class Main {
             remote.getBr().put(remBrNa, cur.getId());
             System.out.println(remote.getBr());
         }
-        remote.save(_tree.getRemote().get(remName));
+        remote.save(_tree.getRemote().get(remName), false);
+    }
+
+    /**
+     * Looks for a commit among the first parents of another, in the
+     * commit graph.
+     * @param from The commit to start at.
+     * @param target The commit looked for.
+     * @return TARGET if FROM or one of its first parents is it, else
+     *         null.
+     */
+    private static Commit onFirstParents(Commit from, Commit target) {
+        CommitGraph graph = CommitGraph.of(gitletDir());
+        int to = graph.find(target.getId());
+        int i = to < 0 ? -1 : graph.find(from.getId());
+        while (i >= 0 && i != to
+                && graph.generation(i) > graph.generation(to)) {
+            i = graph.parent1(i);
+        }
+        return i >= 0 && i == to ? target : null;
     }
 
     /**
@@ -376,23 +508,29 @@ public class Main {
     public static void append(String to1, String from1, Commit from, Commit to)
             throws IOException {
         while (!from.getId().equals(to.getId())) {
+            Tree.copy(to1, from1, to.getTreeId());
             Commit.dupCom(to1, from1, to.getId());
-            for (String f : to.getBlobs().keySet()) {
-                Blob.copyFile(to1, from1, to.getBlobs().get(f));
-            }
-            to = readRemoteobj(Utils.join(from1, ".commits",
-                    to.getParentOne()));
+            MessageIndex.of(to1).add(to);
+            to = readRemoteobj(from1, to.getParentOne());
         }
     }
 
     /**
-     * Reads remote commit with the given file.
-     * @param f The given rile to read.
-     * @return A commit.
+     * Reads the commit with the given id from another repository.
+     * @param dir The gitlet directory of the repository.
+     * @param id The id of the commit.
+     * @return A commit, or null if it is not there.
      */
-    public static Commit readRemoteobj(File f) {
-        if (f.exists()) {
-            return Utils.readObject(f, Commit.class);
+    public static Commit readRemoteobj(String dir, String id) {
+        try {
+            byte[] data = ObjectStore.of(dir).read(".commits", id);
+            if (data != null) {
+                Commit c = (Commit) decode(data);
+                c.setSource(dir);
+                return c;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
         return null;
     }
@@ -405,7 +543,9 @@ public class Main {
     public static CommitTree readTree(String dir) {
         File t = new File(Utils.join(dir, "tree.bin").toString());
         if (t.exists()) {
-            return Utils.readObject(t, CommitTree.class);
+            CommitTree tree = (CommitTree) Codec.decode(Utils.readContents(t));
+            tree.markClean();
+            return tree;
         }
         return null;
     }
@@ -439,56 +579,104 @@ public class Main {
                 branch(x);
             }
             Commit remotehead = readRemoteobj(
-                    Utils.join(_tree.getRemote().get(remoteName), ".commits",
-                            remote.getBr().get(remoteBrName)));
+                    _tree.getRemote().get(remoteName),
+                    remote.getBr().get(remoteBrName));
             Commit cur = (Commit) readF(".commits",
                     _tree.getBr().get(x));
             Commit com = remotehead;
             while (!com.getParentOne().equals("")
                     && !com.getId().equals(
                     cur.getId())) {
-                com = readRemoteobj(
-                        Utils.join(_tree.getRemote().get(remoteName),
-                        ".commits",
-                        com.getParentOne()));
+                com = readRemoteobj(_tree.getRemote().get(remoteName),
+                        com.getParentOne());
             }
             append(Utils.join(CWD,
                     ".gitlet").toString(),
                     _tree.getRemote().get(remoteName),
                     com, remotehead);
             _tree.getBr().put(x, remotehead.getId());
+            CommitGraph.of(gitletDir()).add(remotehead.getId());
         }
     }
 
     /**This method quits with exit code of 0.*/
     private static void quit() {
-        System.exit(0);
+        throw new Quit();
+    }
+
+    /**
+     * Ends a command where it is, leaving the repository as it was.
+     */
+    private static class Quit extends RuntimeException {
+        /** Serial version. */
+        private static final long serialVersionUID = 1L;
     }
 
 
     /**This method does the initialize command.*/
     public static void initialize() {
         Path mainPath = Paths.get(CWD, ".gitlet");
-        if (Files.exists(mainPath)) {
+        if (ObjectStore.inMemory() ? _tree != null
+                : Files.exists(mainPath)) {
             System.out.print("A Gitlet version-control system "
                     + "already exists in the current directory.");
             quit();
         } else {
-            new File(mainPath.toString()).mkdirs();
-            new File(Paths.get(CWD, ".gitlet", ".commits").toString()).mkdirs();
-            new File(Paths.get(CWD, ".gitlet", ".blobs").toString()).mkdirs();
-            new File(Paths.get(CWD, ".gitlet",
-                    ".tempblobs").toString()).mkdirs();
+            if (!ObjectStore.inMemory()) {
+                new File(mainPath.toString()).mkdirs();
+                new File(Paths.get(CWD, ".gitlet",
+                        ".commits").toString()).mkdirs();
+                new File(Paths.get(CWD, ".gitlet",
+                        ".blobs").toString()).mkdirs();
+                new File(Paths.get(CWD, ".gitlet",
+                        ".tempblobs").toString()).mkdirs();
+                Utils.writeContents(Utils.join(gitletDir(), Loose.MARKER),
+                        new byte[0]);
+            }
             _tree = new CommitTree();
             _stage = new Stage();
             _stage.setBlobs(_tree.getLastCommit());
-            writeFile("", "tree.bin", _tree);
-            writeFile("", "stage.bin", _stage);
         }
     }
 
     /**
-     * This method reads the file named as the given parent.
+     * Writes the commit tree and the stage back to the gitlet directory,
+     * each only if the command changed it, so that commands that only
+     * read, such as log and find, write nothing. status writes the
+     * stage only if the parts files are in changed: the stat data it
+     * refreshes as it hashes files is left for the next command that
+     * writes the stage to keep.
+     * @param stats Whether new stat data alone is worth writing the
+     *              stage for.
+     */
+    static void saveState(boolean stats) {
+        if (_tree != null && _tree.isDirty()) {
+            try {
+                Worktree.saveTree(gitletDir(), _tree);
+                _tree.markClean();
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+        try {
+            CommitGraph.saveAll();
+            MessageIndex.saveAll();
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+        if (_stage != null && _stage.isDirty(stats)) {
+            try {
+                _stage.save(gitletDir());
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * This method reads the file named as the given parent. Objects
+     * decoded from the store are kept in the ObjectCache, so reading
+     * one again returns the same instance without decoding it.
      * @param folder The directory in gitlet.
      * @param parent The file in the folder.
      * @return The object read out in that file parent.
@@ -499,19 +687,28 @@ public class Main {
             Path path = Paths.get(CWD, ".gitlet", folder);
             path = path.resolve(parent);
             try {
-                ObjectInputStream ois = new ObjectInputStream(
-                        new FileInputStream(path.toString()));
-                while (true) {
-                    obj = ois.readObject();
-                    ois.close();
-                    break;
+                byte[] data;
+                if (isObjectFolder(folder)) {
+                    obj = ObjectCache.get(folder, parent);
+                    if (obj != null) {
+                        return obj;
+                    }
+                    data = ObjectStore.of(gitletDir()).read(folder, parent);
+                } else {
+                    data = Files.readAllBytes(path);
                 }
-            } catch (FileNotFoundException e) {
+                if (data == null) {
+                    System.out.println("File does not exist.");
+                } else {
+                    obj = decode(data);
+                    if (isObjectFolder(folder)) {
+                        ObjectCache.put(folder, parent, obj);
+                    }
+                }
+            } catch (NoSuchFileException e) {
                 System.out.println("File does not exist.");
             } catch (IOException e) {
                 System.out.println("IOException: " + e.getMessage());
-            } catch (ClassNotFoundException e) {
-                System.out.println("ClassNotFoundException: " + e.getMessage());
             }
         }
         return obj;
@@ -519,7 +716,9 @@ public class Main {
 
     /**
      * The method to save the object c in a new location
-     * named by hash in the given folder.
+     * named by hash in the given folder. Objects in the object
+     * folders are compressed and handed to the store of the repository,
+     * unless it has them already.
      * @param folder The given folder to write the object in.
      * @param fileName The name of the file to write in,
      * @param c The object to write.
@@ -527,15 +726,21 @@ public class Main {
     public static void writeFile(String folder, String fileName, Object c) {
         if (folder != null && fileName != null) {
             Path path = Paths.get(CWD, ".gitlet", folder);
-            if (!Files.exists(path)) {
-                new File(path.toString()).mkdirs();
-            }
-            path = path.resolve(fileName);
             try {
-                ObjectOutputStream o = new ObjectOutputStream(
-                        new FileOutputStream(path.toString()));
-                o.writeObject(c);
-                o.close();
+                if (!isObjectFolder(folder)) {
+                    Files.createDirectories(path);
+                    writeAtomically(gitletDir(), path.resolve(fileName),
+                            encode(c, false));
+                } else {
+                    ObjectStore store = ObjectStore.of(gitletDir());
+                    if (!store.freshen(folder, fileName)) {
+                        byte[] data = encode(c, true);
+                        store.write(folder, fileName, data);
+                        if (c instanceof Commit) {
+                            ObjectCache.put(folder, fileName, c);
+                        }
+                    }
+                }
             } catch (IOException e) {
                 System.out.println("IOException: " + e.getMessage());
             }
@@ -546,6 +751,208 @@ public class Main {
         }
     }
 
+    /**
+     * Writes DATA to a file by writing it aside and renaming it over the
+     * file, so that a reader, or a command that dies halfway, sees
+     * either the old content or the new one and never a mix.
+     * @param gitlet The gitlet directory the file is in.
+     * @param dest The file.
+     * @param data The bytes to write.
+     * @throws IOException
+     */
+    static void writeAtomically(String gitlet, Path dest, byte[] data)
+            throws IOException {
+        Path temp = Loose.temp(gitlet);
+        try {
+            Files.write(temp, data);
+            Files.move(temp, dest, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the object with the given id from one repository to
+     * another unless the other already has it. The object is streamed
+     * through a file, so it need not fit in memory.
+     * @param to The gitlet directory to copy to.
+     * @param from The gitlet directory to copy from.
+     * @param folder The folder of the object.
+     * @param id The id of the object.
+     * @throws IOException
+     */
+    static void copyObject(String to, String from, String folder, String id)
+            throws IOException {
+        ObjectStore dest = ObjectStore.of(to);
+        if (dest.freshen(folder, id)) {
+            return;
+        }
+        try (InputStream in = ObjectStore.of(from).open(folder, id)) {
+            if (in == null) {
+                return;
+            }
+            Path temp = Loose.temp(Worktree.common(to));
+            try {
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+                dest.put(folder, id, temp);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Does the repack command, having the store rewrite itself in its
+     * most compact form. The manifests of the commits tell the store
+     * which blobs are versions of the same file, to store them as
+     * deltas.
+     */
+    public static void repack() {
+        ObjectStore store = ObjectStore.of(gitletDir());
+        IdMap<String> paths = new IdMap<>();
+        IdSet trees = new IdSet();
+        try {
+            for (String id : store.ids(".commits")) {
+                Commit c = (Commit) decode(store.read(".commits", id));
+                pathsOf(trees, paths, c.getTreeId(), "");
+            }
+            store.repack(paths);
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a path for each blob under a tree not seen yet, going
+     * into the subtrees not seen yet either, so that a tree shared by
+     * many commits is walked once.
+     * @param seen The trees seen already.
+     * @param paths The path of each blob, by id.
+     * @param id The id of the tree.
+     * @param prefix The path of the tree.
+     */
+    private static void pathsOf(IdSet seen, IdMap<String> paths,
+                                String id, String prefix) {
+        if (id == null || id.isEmpty() || !seen.add(id)) {
+            return;
+        }
+        Tree t = Tree.read(gitletDir(), id);
+        for (Map.Entry<String, String> e : t.getFiles().entrySet()) {
+            paths.putIfAbsent(e.getValue(), prefix + e.getKey());
+        }
+        for (Map.Entry<String, String> e : t.getDirs().entrySet()) {
+            pathsOf(seen, paths, e.getValue(),
+                    prefix + e.getKey() + Tree.SEPARATOR);
+        }
+    }
+
+    /**
+     * Returns the gitlet directory of the repository in the cur
+     * directory.
+     * @return The path of the gitlet directory.
+     */
+    static String gitletDir() {
+        return Paths.get(CWD, ".gitlet").toString();
+    }
+
+    /**
+     * Tells if the given folder holds content-addressed objects, which
+     * are the ones stored compressed.
+     * @param folder A folder in gitlet.
+     * @return True for the blob, commit and tree folders.
+     */
+    static boolean isObjectFolder(String folder) {
+        return folder.equals(".blobs") || folder.equals(".commits")
+                || folder.equals(Tree.FOLDER);
+    }
+
+    /**
+     * The zlib level objects are compressed with. It can be set with
+     * the gitlet.compression property, from 0 (store only) to 9.
+     * @return The compression level.
+     */
+    static int compressionLevel() {
+        String level = System.getProperty("gitlet.compression");
+        if (level == null) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        try {
+            return Math.max(Deflater.NO_COMPRESSION,
+                    Math.min(Deflater.BEST_COMPRESSION,
+                            Integer.parseInt(level)));
+        } catch (NumberFormatException e) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    /**
+     * Encodes the object c, compressing the result if asked.
+     * @param c The object to encode.
+     * @param compress Whether to deflate the encoded bytes.
+     * @return The bytes to store.
+     * @throws IOException
+     */
+    static byte[] encode(Object c, boolean compress) throws IOException {
+        byte[] raw = Codec.encode(c);
+        if (!compress) {
+            return raw;
+        }
+        return deflate(raw);
+    }
+
+    /**
+     * Compresses RAW at the configured level.
+     * @param raw The bytes to compress.
+     * @return A zlib stream.
+     */
+    static byte[] deflate(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+        Deflater deflater = new Deflater(compressionLevel());
+        try (DeflaterOutputStream z = new DeflaterOutputStream(out,
+                deflater)) {
+            z.write(raw);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Undoes deflate, leaving bytes that are not compressed alone.
+     * @param data Stored bytes.
+     * @return The uncompressed bytes.
+     */
+    static byte[] inflate(byte[] data) {
+        if (data.length == 0 || data[0] != ZLIB_HEADER) {
+            return data;
+        }
+        try (InflaterInputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads back an object written by encode. Compressed objects are
+     * told apart by their zlib header, since an encoding always starts
+     * with a different magic number.
+     * @param data The stored bytes.
+     * @return The object.
+     * @throws IOException
+     */
+    static Object decode(byte[] data) throws IOException {
+        try {
+            return Codec.decode(inflate(data));
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated object");
+        }
+    }
 
     /**
      * Adds a file with the given fileName to cur directory.
@@ -568,10 +975,10 @@ public class Main {
      * Create and write a new file in the cur directory.
      * @param dir The directory to write the file in.
      * @param fileName The file name of the file.
-     * @param content The content of the file.
+     * @param content The bytes of the file.
      */
     public static void writeToCWDFile(String dir,
-                                      String fileName, String content) {
+                                      String fileName, byte[] content) {
         if (dir != null && fileName != null) {
             Path path = Paths.get(CWD, dir);
             if (!Files.exists(path)) {
@@ -579,7 +986,30 @@ public class Main {
             }
             path = path.resolve(fileName);
             File f = new File(path.toString());
-            Utils.writeContents(f, content.getBytes());
+            Utils.writeContents(f, content);
+        } else if (dir == null) {
+            System.out.println("Null directory.");
+        } else {
+            System.out.println("Null filename.");
+        }
+    }
+
+    /**
+     * Writes the content of the blob with the given id to a file in the
+     * cur directory, streaming it so that it need not fit in memory.
+     * @param dir The directory to write the file in.
+     * @param fileName The file name of the file.
+     * @param id The id of the blob.
+     */
+    public static void writeBlobToCWDFile(String dir, String fileName,
+                                          String id) {
+        if (dir != null && fileName != null) {
+            try {
+                Blob.writeTo(gitletDir(), ".blobs", id,
+                        Paths.get(CWD, dir).resolve(fileName));
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
         } else if (dir == null) {
             System.out.println("Null directory.");
         } else {
@@ -588,24 +1018,46 @@ public class Main {
     }
 
     /**
-     * A method that reads a file in the cur directory and reads its content
-     * and returns its content as a string.
+     * Returns the content of the blob with the given id, whether it is
+     * stored whole or chunked. The content is kept in the ObjectCache
+     * and shared with later readers, so it must not be changed.
+     * @param id The id of the blob.
+     * @return The bytes, empty if the blob cannot be read.
+     */
+    public static byte[] readBlobContent(String id) {
+        byte[] content = (byte[]) ObjectCache.get(ObjectCache.CONTENTS, id);
+        if (content != null) {
+            return content;
+        }
+        try {
+            content = Blob.contentOf(gitletDir(), id);
+            ObjectCache.put(ObjectCache.CONTENTS, id, content);
+            return content;
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            return new byte[0];
+        }
+    }
+
+    /**
+     * A method that hashes a file in the cur directory, streaming it,
+     * and returns the id its blob would have.
      * @param dir The folder in cur directory.
      * @param fileName The filename in the dir.
-     * @return A string of this file's content.
+     * @return The id, or null if the file cannot be read.
      */
-    public static String readCWDFileToString(String dir, String fileName) {
-        byte [] b = null;
+    public static String hashCWDFile(String dir, String fileName) {
+        String id = null;
         if (dir != null && fileName != null) {
             Path path = Paths.get(CWD, dir);
             path = path.resolve(fileName);
             try {
-                b = Files.readAllBytes(path);
+                id = Blob.hashFile(path);
             } catch (IOException e) {
                 System.out.println("File does not exist.");
             }
         }
-        return new String(b);
+        return id;
     }
 
     /**
@@ -632,13 +1084,17 @@ public class Main {
      */
     public static ArrayList<Object> readFs(String dir) {
         if (dir != null) {
-            Path path = Paths.get(CWD, ".gitlet", dir);
-            File f = new File(path.toString());
-            File[] fi = f.listFiles();
             ArrayList<String> actualFiles = new ArrayList<>();
-            for (File a : fi) {
-                if (a.isFile()) {
-                    actualFiles.add(a.getName());
+            if (isObjectFolder(dir)) {
+                for (String id : ObjectStore.of(gitletDir()).ids(dir)) {
+                    actualFiles.add(id);
+                }
+            } else {
+                File f = new File(Paths.get(CWD, ".gitlet", dir).toString());
+                for (File a : f.listFiles()) {
+                    if (a.isFile()) {
+                        actualFiles.add(a.getName());
+                    }
                 }
             }
             ArrayList<Object> ans = new ArrayList<>();
@@ -736,7 +1192,8 @@ public class Main {
      */
     public static void status() {
         File f = new File(CWD + "/.gitlet");
-        if (f.exists() && f.isDirectory()) {
+        if (ObjectStore.inMemory() ? _tree != null
+                : f.exists() && f.isDirectory()) {
             _tree.status();
             _stage.status();
         } else {
@@ -752,8 +1209,8 @@ public class Main {
     public static void caseOne(String fileName) {
         Commit prev = _tree.getLastCommit();
         if (prev.getBlobs().containsKey(fileName)) {
-            Blob add = (Blob) readF(".blobs", prev.getBlobs().get(fileName));
-            Main.writeToCWDFile("", fileName, add.getContent());
+            Main.writeBlobToCWDFile("", fileName,
+                    prev.getBlobs().get(fileName));
 
         } else {
             System.out.println("File does not exist in that commit.");
@@ -767,40 +1224,48 @@ public class Main {
      */
     public static void caseTwo(String commitid, String filename) {
         commitid = getCommitIfExists(commitid);
-        if (commitid.equals("")) {
+        if (commitid == null) {
+            return;
+        } else if (commitid.equals("")) {
             System.out.print("No commit with that id exists.");
             return;
         }
         Commit c  = (Commit) readF(".commits", commitid);
         if (c.getBlobs().containsKey(filename)) {
-            Blob add = (Blob) Main.readF(".blobs",
+            Main.writeBlobToCWDFile("", filename,
                     c.getBlobs().get(filename));
-            Main.writeToCWDFile("", filename, add.getContent());
         }  else {
             System.out.println("File does not exist in that commit.");
         }
     }
 
     /**
-     * This method gets the commit with the given
-     * commit message. Returns an empty string if
-     * not found.
-     * @param c The given commit message.
-     * @return A string of the commit id.
+     * This method finds the commit whose id starts with the given
+     * prefix, looking it up in the sorted ids of the store. Prints a
+     * message and returns null if more than one commit matches.
+     * @param c The given commit id or prefix.
+     * @return A string of the commit id, or an empty string if not
+     *         found.
      */
     public static String getCommitIfExists(String c) {
-
-        Path path = Paths.get(CWD, ".commits");
-        ArrayList f = readFs(".commits");
-
-        for (Object file : f) {
-            Commit c2 = (Commit) file;
-            String c2Id = c2.getId();
-            if (c2Id.substring(0, c.length()).equals(c)) {
-                return ((Commit) file).getId();
-            }
+        String prefix = c.toLowerCase();
+        if (prefix.isEmpty() || prefix.length() > Utils.UID_LENGTH
+                || !prefix.matches("[0-9a-f]+")) {
+            return "";
         }
-        return "";
+        Set<String> found;
+        try {
+            found = ObjectStore.of(gitletDir()).matching(".commits",
+                    prefix, 2);
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            return null;
+        }
+        if (found.size() > 1) {
+            System.out.println("Commit id " + c + " is ambiguous.");
+            return null;
+        }
+        return found.isEmpty() ? "" : found.iterator().next();
     }
 
 
@@ -816,9 +1281,18 @@ public class Main {
             System.out.println("No need to checkout the current branch.");
             return;
         }
+        try {
+            if (Worktree.checkedOutElsewhere(gitletDir(), gN)) {
+                System.out.println("That branch is already checked out.");
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            return;
+        }
         Commit c = (Commit) Main.readF(".commits",
                 _tree.getBr().get(gN));
-        HashMap<String, String> b = c.getBlobs();
+        Map<String, String> b = c.getBlobs();
 
         ArrayList<String> filesInCurrBlobs = new ArrayList<>(b.keySet());
         _stage.updateVars();
@@ -833,13 +1307,15 @@ public class Main {
         }
 
         for (String key : _tree.getLastCommit().getBlobs().keySet()) {
-            Main.delCDFile("", key);
+            if (!b.containsKey(key)) {
+                Main.delCDFile("", key);
+            }
         }
 
         for (String key : filesInCurrBlobs) {
-            String blobContent = ((Blob) Main.readF(".blobs",
-                    b.get(key))).getContent();
-            Main.writeToCWDFile("", key, blobContent);
+            if (!b.get(key).equals(_stage.hashOf(key))) {
+                Main.writeBlobToCWDFile("", key, b.get(key));
+            }
         }
         _tree.setHead(gN);
         _stage.setBlobs(c);
@@ -859,15 +1335,26 @@ public class Main {
     }
 
     /**
-     * This method deletes the branch with the given.
+     * This method deletes the branch with the given name, unless it is
+     * checked out here or in another working tree.
      * @param gN The given branch name.
      */
     public static void deleteBranch(String gN) {
         if (!_tree.getBr().containsKey(gN)) {
-            System.out.println("A branch with that name already exists.");
+            System.out.println("A branch with that name does not exist.");
         } else if (_tree.getHead().equals(gN)) {
             System.out.println("Cannot remove the current branch.");
         } else {
+            try {
+                if (Worktree.checkedOutElsewhere(gitletDir(), gN)) {
+                    System.out.println("Cannot remove a branch checked "
+                            + "out in another working tree.");
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+                return;
+            }
             _tree.deleteBranch(gN);
         }
     }
@@ -878,7 +1365,10 @@ public class Main {
      *                 tracked by the given commit.
      */
     public static void reset(String commitId) {
-        if (getCommitIfExists(commitId).equals("")) {
+        commitId = getCommitIfExists(commitId);
+        if (commitId == null) {
+            return;
+        } else if (commitId.equals("")) {
             System.out.println("No commit with that id exists.");
             return;
         }
@@ -922,9 +1412,9 @@ public class Main {
         if (splitPt == null) {
             return;
         }
-        HashMap<String, String> gB = hGiven.getBlobs();
-        HashMap<String, String> spBlobs = splitPt.getBlobs();
-        HashMap<String, String> curB = _tree.getLastCommit().getBlobs();
+        Map<String, String> gB = hGiven.getBlobs();
+        Map<String, String> spBlobs = splitPt.getBlobs();
+        Map<String, String> curB = _tree.getLastCommit().getBlobs();
         HashMap<String, String> r = new HashMap<>();
         HashMap<String, String> newBlobs = new HashMap<>();
         HashMap<String, String> confc = new HashMap<>();
@@ -963,7 +1453,8 @@ public class Main {
             ArrayList<String> c = Main.getCWDFilesNames("");
             for (String name : c) {
                 if (confc.containsKey(name)) {
-                    Main.writeToCWDFile("", name, confc.get(name));
+                    Main.writeToCWDFile("", name,
+                            confc.get(name).getBytes(StandardCharsets.UTF_8));
                     _tree.add("Merged " + gN + " into " + _tree.getHead()
                             + ".", newBlobs, r, hGiven.getId());
                 }
@@ -999,11 +1490,12 @@ public class Main {
             return null;
         }
         if (splitPoint == null) {
-            Commit c = _tree.getLastCommit();
-            while (!c.getParentOne().equals("")) {
-                c = (Commit) Main.readF(".commits", c.getParentOne());
+            CommitGraph graph = CommitGraph.of(gitletDir());
+            int root = graph.find(_tree.getLastCommit().getId());
+            while (graph.parent1(root) >= 0) {
+                root = graph.parent1(root);
             }
-            splitPoint = c;
+            splitPoint = (Commit) Main.readF(".commits", graph.id(root));
         }
         return splitPoint;
     }
@@ -1026,79 +1518,56 @@ public class Main {
     }
 
     /**
-     * Finds the split point.
+     * Finds the split point, walking the commit graph instead of the
+     * commits. From a merge commit, the first parent chain of each of
+     * its parents is followed to an ancestor of the given head, and the
+     * nearer one is taken, the second parent's on a tie.
      * @param givenBrName The given branch name.
      * @return The split point commit. Null if non.
      */
     public static Commit findSplitPoint(String givenBrName) {
-        Commit splitPoint;
-        Commit givenHead = (Commit) Main.readF(".commits",
-                _tree.getBr().get(givenBrName));
-        Commit currHead = _tree.getLastCommit();
-        HashSet<String> givenAncestors = findAllAncestors(givenHead);
-        while (currHead != null) {
-            if (currHead.getCommitmessage().contains("Merged")) {
-                HashMap<Integer, Commit> compares = new HashMap<>();
-                Commit parent1 = (Commit) Main.readF(".commits",
-                        currHead.getParentOne());
-                Commit parent2 = (Commit) Main.readF(".commits",
-                        currHead.getParent2());
-                int count = 0;
-                while (parent1 != null) {
-                    if (givenAncestors.contains(parent1.getId())) {
-                        compares.put(count, parent1);
-                        break;
-                    }
-                    parent1 = (Commit) Main.readF(".commits",
-                            parent1.getParentOne());
-                    count++;
-                }
-                int counter2 = 0;
-                while (parent2 != null) {
-                    if (givenAncestors.contains(parent2.getId())) {
-                        compares.put(counter2, parent2);
-                        break;
-                    }
-                    parent2 = (Commit) Main.readF(".commits",
-                            parent2.getParentOne());
-                    counter2++;
-                }
-                int closest = Collections.min(compares.keySet());
-                splitPoint = compares.get(closest);
-                return splitPoint;
-            } else if (givenAncestors.contains(currHead.getId())) {
-                splitPoint = currHead;
-                return splitPoint;
+        CommitGraph graph = CommitGraph.of(gitletDir());
+        BitSet givenAncestors = graph.ancestors(
+                graph.find(_tree.getBr().get(givenBrName)));
+        int curr = graph.find(_tree.getLastCommit().getId());
+        while (curr >= 0) {
+            if (graph.parent2(curr) >= 0) {
+                int[] one = nearest(graph, graph.parent1(curr),
+                        givenAncestors);
+                int[] two = nearest(graph, graph.parent2(curr),
+                        givenAncestors);
+                int found = one[1] < two[1] ? one[0] : two[0];
+                return found < 0 ? null
+                        : (Commit) readF(".commits", graph.id(found));
+            } else if (givenAncestors.get(curr)) {
+                return (Commit) readF(".commits", graph.id(curr));
             }
-            currHead = (Commit) Main.readF(".commits",
-                    currHead.getParentOne());
+            curr = graph.parent1(curr);
         }
         return null;
     }
+
     /**
-     * Finds all the ancestors of this commit.
-     * @param head The commit head.
-     * @return A hashset containg all ancestors of this head
-     * including parent one and parent twos.
+     * Follows the first parents of a commit to the first of the given
+     * commits.
+     * @param graph The commit graph.
+     * @param from The position of the commit to start at.
+     * @param targets The positions of the commits looked for.
+     * @return The position of the commit found and the number of steps
+     *         taken, or -1 and Integer.MAX_VALUE if none is found.
      */
-    public static HashSet<String> findAllAncestors(Commit head) {
-        HashSet<String> result = new HashSet<>();
-        while (head != null) {
-            if (head.getCommitmessage().contains("Merge")) {
-                Commit p2 = (Commit) Main.readF(".commits", head.getParent2());
-                result.addAll(findAllAncestors(p2));
-            }
-            result.add(head.getId());
-            if (!head.getParentOne().equals("")) {
-                head = (Commit) Main.readF(".commits", head.getParentOne());
-            } else {
-                break;
+    private static int[] nearest(CommitGraph graph, int from,
+                                 BitSet targets) {
+        int steps = 0;
+        for (int i = from; i >= 0; i = graph.parent1(i)) {
+            if (targets.get(i)) {
+                return new int[] {i, steps};
             }
+            steps += 1;
         }
-        return result;
+        return new int[] {-1, Integer.MAX_VALUE};
     }
 
-
     /**
      * Updates the cur directory and stage.
      * @param gB The given blobs.
@@ -1108,9 +1577,9 @@ public class Main {
      * @param confc The conflict files.
      * @param givenCommit The given commit.
      */
-    public static void updateCwdAndStage(HashMap<String, String> gB,
-                                         HashMap<String, String> spBlobs,
-                                         HashMap<String, String> curB,
+    public static void updateCwdAndStage(Map<String, String> gB,
+                                         Map<String, String> spBlobs,
+                                         Map<String, String> curB,
                                          HashMap<String, String> newBlobs,
                                          HashMap<String, String> confc,
                                          Commit givenCommit) {
@@ -1165,24 +1634,23 @@ public class Main {
      * @param confc The files that are conflicting.
      * @param key The given file.
      */
-    public static void writeConflictFile(HashMap<String, String> curB,
-                                        HashMap<String, String> gB,
+    public static void writeConflictFile(Map<String, String> curB,
+                                         Map<String, String> gB,
                                          HashMap<String, String> confc,
                                          String key) {
         String message = "<<<<<<< HEAD" + "\n";
         if (!curB.containsKey(key)) {
             message += "";
         } else {
-            Blob curr = (Blob) Main.readF(".blobs", curB.get(key));
-
-            message += curr.getContent();
+            message += new String(readBlobContent(curB.get(key)),
+                    StandardCharsets.UTF_8);
         }
         message += "=======" + "\n";
         if (!gB.containsKey(key)) {
             message += "";
         } else {
-            Blob given = (Blob) Main.readF(".blobs", gB.get(key));
-            message += given.getContent();
+            message += new String(readBlobContent(gB.get(key)),
+                    StandardCharsets.UTF_8);
         }
         message += ">>>>>>>" + "\n";
         confc.put(key, message);
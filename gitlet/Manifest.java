@@ -0,0 +1,166 @@
+package gitlet;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The files of a commit, as a map from paths to blob ids that reads
+ * through its tree instead of copying it. Trees are shared between
+ * commits wherever their directories did not change, and Tree.read
+ * hands out one decoded copy of each, so the manifests of a walk over
+ * many commits share every node the commits have in common: what a
+ * commit adds to memory is the trees of the directories it changed.
+ *
+ * A path is looked up one directory at a time, and the entries are
+ * walked depth first, each path built from that of its directory. The
+ * map cannot be changed.
+ * @author Yu Xi Gui
+ */
+class Manifest extends AbstractMap<String, String> {
+    /**The gitlet directory the trees are read from.*/
+    private final String _gitlet;
+    /**The id of the root tree.*/
+    private final String _root;
+    /**The entries, made when first asked for.*/
+    private Set<Map.Entry<String, String>> _entries;
+
+    /**
+     * The manifest of the tree with the given id.
+     * @param gitlet The gitlet directory to read trees from.
+     * @param root The id of the tree, or the empty string for none.
+     */
+    Manifest(String gitlet, String root) {
+        _gitlet = gitlet;
+        _root = root;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String path = (String) key;
+        Tree t = Tree.read(_gitlet, _root);
+        int start = 0;
+        int slash = path.indexOf(Tree.SEPARATOR);
+        while (slash >= 0) {
+            String sub = t.dir(path.substring(start, slash));
+            if (sub == null) {
+                return null;
+            }
+            t = Tree.read(_gitlet, sub);
+            start = slash + 1;
+            slash = path.indexOf(Tree.SEPARATOR, start);
+        }
+        return t.file(path.substring(start));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return Tree.read(_gitlet, _root).count(_gitlet);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (_entries == null) {
+            _entries = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Walk();
+                }
+
+                @Override
+                public int size() {
+                    return Manifest.this.size();
+                }
+            };
+        }
+        return _entries;
+    }
+
+    /**
+     * A walk over the files of the manifest, each directory's files
+     * before the directories in it.
+     */
+    private class Walk implements Iterator<Map.Entry<String, String>> {
+        /**The directories being walked, innermost first.*/
+        private final ArrayDeque<Frame> _stack = new ArrayDeque<>();
+        /**The next entry, or null at the end.*/
+        private Map.Entry<String, String> _next;
+
+        /**A walk from the root.*/
+        Walk() {
+            _stack.push(new Frame(Tree.read(_gitlet, _root), ""));
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (_next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = _next;
+            advance();
+            return result;
+        }
+
+        /**
+         * Moves to the next file, going into directories as they come.
+         */
+        private void advance() {
+            _next = null;
+            while (_next == null && !_stack.isEmpty()) {
+                Frame f = _stack.peek();
+                if (f._files.hasNext()) {
+                    Map.Entry<String, String> e = f._files.next();
+                    _next = new SimpleImmutableEntry<>(
+                            f._prefix + e.getKey(), e.getValue());
+                } else if (f._dirs.hasNext()) {
+                    Map.Entry<String, String> e = f._dirs.next();
+                    _stack.push(new Frame(Tree.read(_gitlet, e.getValue()),
+                            f._prefix + e.getKey() + Tree.SEPARATOR));
+                } else {
+                    _stack.pop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Where a walk is in one directory.
+     */
+    private static class Frame {
+        /**The files of the directory left to walk.*/
+        private final Iterator<Map.Entry<String, String>> _files;
+        /**The directories in it left to walk.*/
+        private final Iterator<Map.Entry<String, String>> _dirs;
+        /**Its path, ending in Tree.SEPARATOR unless it is the root.*/
+        private final String _prefix;
+
+        /**
+         * The start of a walk over a directory.
+         * @param t Its tree.
+         * @param prefix Its path.
+         */
+        Frame(Tree t, String prefix) {
+            _files = t.getFiles().entrySet().iterator();
+            _dirs = t.getDirs().entrySet().iterator();
+            _prefix = prefix;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A store keeping objects on the heap, lost when the process ends. It
+ * lets commands be run and timed, many to a process, without any
+ * object being read from or written to disk.
+ * @author Yu Xi Gui
+ */
+class MemoryStore implements ObjectStore {
+    /**The stores made so far, by gitlet directory.*/
+    private static HashMap<String, MemoryStore> _open = new HashMap<>();
+
+    /**The stored bytes of the objects, by folder and id.*/
+    private final HashMap<String, TreeMap<String, byte[]>> _objects =
+            new HashMap<>();
+    /**When each object was stored, in epoch millis, by id.*/
+    private final HashMap<String, Long> _stored = new HashMap<>();
+
+    /**
+     * Returns the store of the given gitlet directory, empty at first.
+     * @param gitlet The gitlet directory.
+     * @return The store.
+     */
+    static synchronized MemoryStore of(String gitlet) {
+        return _open.computeIfAbsent(gitlet, g -> new MemoryStore());
+    }
+
+    @Override
+    public synchronized byte[] read(String folder, String id) {
+        TreeMap<String, byte[]> objs = _objects.get(folder);
+        return objs == null ? null : objs.get(id);
+    }
+
+    @Override
+    public InputStream open(String folder, String id) {
+        byte[] data = read(folder, id);
+        return data == null ? null : new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public boolean has(String folder, String id) {
+        return read(folder, id) != null;
+    }
+
+    @Override
+    public synchronized void write(String folder,
+                                   Map<String, byte[]> objects) {
+        TreeMap<String, byte[]> objs =
+                _objects.computeIfAbsent(folder, f -> new TreeMap<>());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, byte[]> e : objects.entrySet()) {
+            if (objs.putIfAbsent(e.getKey(), e.getValue()) == null) {
+                _stored.put(e.getKey(), now);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Set<String> matching(String folder, String prefix,
+                                             int limit) {
+        TreeSet<String> result = new TreeSet<>();
+        TreeMap<String, byte[]> objs = _objects.get(folder);
+        if (objs != null) {
+            for (String id : objs.tailMap(prefix, true).keySet()) {
+                if (!id.startsWith(prefix) || result.size() >= limit) {
+                    break;
+                }
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the file into memory and deletes it.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @param file The file.
+     * @throws IOException
+     */
+    @Override
+    public void put(String folder, String id, Path file) throws IOException {
+        if (!has(folder, id)) {
+            write(folder, id, Files.readAllBytes(file));
+        }
+        Files.delete(file);
+    }
+
+    @Override
+    public synchronized Iterable<String> ids(String folder) {
+        TreeMap<String, byte[]> objs = _objects.get(folder);
+        return objs == null ? new ArrayList<>()
+                : new ArrayList<>(objs.keySet());
+    }
+
+    /**
+     * Does nothing, objects in memory being as compact as they get.
+     * @param paths Maps blob ids to a path they were committed under.
+     */
+    @Override
+    public void repack(IdMap<String> paths) {
+    }
+
+    @Override
+    public synchronized long[] prune(Map<String, IdSet> live,
+                                     IdMap<String> paths, long cutoff) {
+        long[] result = new long[2];
+        for (Map.Entry<String, TreeMap<String, byte[]>> folder
+                : _objects.entrySet()) {
+            IdSet keep = live.get(folder.getKey());
+            Iterator<Map.Entry<String, byte[]>> it =
+                    folder.getValue().entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, byte[]> e = it.next();
+                if (!keep.contains(e.getKey())
+                        && _stored.get(e.getKey()) <= cutoff) {
+                    result[0] += 1;
+                    result[1] += e.getValue().length;
+                    _stored.remove(e.getKey());
+                    it.remove();
+                }
+            }
+        }
+        return result;
+    }
+}
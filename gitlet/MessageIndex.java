@@ -0,0 +1,445 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages of the commits of a repository, so that find looks a
+ * message up instead of reading every commit. Each commit is numbered
+ * in the order it was indexed; its message is found under the whole
+ * message, and, for find --grep, under each of its words.
+ *
+ * The index is kept in the messages file of the gitlet directory: a
+ * header, the magic number, the version and the number of commits,
+ * then one record per commit, its id, the length of its message and
+ * the message in UTF-8. New commits are appended, with the file locked,
+ * and the count in the header written last, so a record cut short is
+ * never counted. The count is read again once the file is locked: if
+ * another process appended meanwhile, the file is read again and only
+ * the commits it lacks are appended after its records. A file removed
+ * meanwhile, by gc, is left to be built again.
+ *
+ * Commits are added as they are written to the store, by commit and
+ * by copying them from another repository. A repository without the
+ * file, made by an older gitlet, has its index built from every commit
+ * of its store the first time it is searched; until then nothing is
+ * added to it.
+ * @author Yu Xi Gui
+ */
+class MessageIndex {
+    /**The name of the file in the gitlet directory.*/
+    static final String FILE = "messages";
+    /**The magic number heading the file.*/
+    static final int MAGIC = 0x474d4931;
+    /**The version of the file written.*/
+    static final int VERSION = 1;
+    /**The number of bytes of the header.*/
+    static final int HEADER = 12;
+
+    /**The indexes opened so far, by gitlet directory.*/
+    private static HashMap<String, MessageIndex> _open = new HashMap<>();
+
+    /**The gitlet directory of the repository.*/
+    private final String _gitlet;
+    /**Whether every commit of the store is in the index.*/
+    private boolean _built;
+    /**The ids of the commits indexed.*/
+    private IdSet _indexed = new IdSet();
+    /**The ids of the commits, by number.*/
+    private ArrayList<ObjectId> _ids = new ArrayList<>();
+    /**The messages, by number.*/
+    private ArrayList<String> _messages = new ArrayList<>();
+    /**The numbers of the commits with each message.*/
+    private HashMap<String, List<Integer>> _exact = new HashMap<>();
+    /**The numbers of the commits with each word, made when first
+     * searched.*/
+    private HashMap<String, BitSet> _words;
+    /**How many of the commits are in the file.*/
+    private int _saved;
+    /**Where the records of the file end.*/
+    private long _end = HEADER;
+    /**Where the last record of the file starts.*/
+    private long _last = HEADER;
+
+    /**
+     * The index of the given gitlet directory, read from its file.
+     * @param gitlet The gitlet directory of the repository.
+     */
+    private MessageIndex(String gitlet) {
+        _gitlet = gitlet;
+        load();
+    }
+
+    /**
+     * Returns the index of the repository of the given gitlet
+     * directory, or of one of its working trees.
+     * @param gitlet The gitlet directory.
+     * @return The index.
+     */
+    static synchronized MessageIndex of(String gitlet) {
+        return _open.computeIfAbsent(Worktree.common(gitlet),
+                MessageIndex::new);
+    }
+
+    /**
+     * Writes the commits added to the indexes opened so far.
+     * @throws IOException
+     */
+    static synchronized void saveAll() throws IOException {
+        for (MessageIndex index : _open.values()) {
+            index.save();
+        }
+    }
+
+    /**
+     * Removes the file of the index of a repository, for it to be built
+     * again from the commits left.
+     * @param gitlet The gitlet directory.
+     * @throws IOException
+     */
+    static synchronized void drop(String gitlet) throws IOException {
+        String common = Worktree.common(gitlet);
+        _open.remove(common);
+        Files.deleteIfExists(Paths.get(common, FILE));
+    }
+
+    /**
+     * Adds a commit written to the store, unless the index is yet to be
+     * built or has it already.
+     * @param c The commit.
+     */
+    void add(Commit c) {
+        if (_built && !_indexed.contains(c.getId())) {
+            append(ObjectId.of(c.getId()), c.getCommitmessage());
+        }
+    }
+
+    /**
+     * Returns the ids of the commits with the given message.
+     * @param message The whole message.
+     * @return The ids, in the order they were indexed.
+     */
+    List<String> find(String message) {
+        build();
+        ArrayList<String> result = new ArrayList<>();
+        List<Integer> found = _exact.get(message);
+        if (found != null) {
+            for (int i : found) {
+                result.add(_ids.get(i).toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ids of the commits whose messages have every word of
+     * the pattern in them, ignoring case, as a word or part of one. The
+     * words of the index holding each are looked up, so no message is
+     * read. A pattern with no words matches the messages holding it.
+     * @param pattern The words looked for.
+     * @return The ids, in the order they were indexed.
+     */
+    List<String> grep(String pattern) {
+        build();
+        BitSet found = null;
+        for (String word : words(pattern)) {
+            BitSet with = new BitSet(_ids.size());
+            for (Map.Entry<String, BitSet> e : words().entrySet()) {
+                if (e.getKey().contains(word)) {
+                    with.or(e.getValue());
+                }
+            }
+            if (found == null) {
+                found = with;
+            } else {
+                found.and(with);
+            }
+        }
+        if (found == null) {
+            found = new BitSet(_ids.size());
+            for (int i = 0; i < _messages.size(); i += 1) {
+                if (_messages.get(i).contains(pattern)) {
+                    found.set(i);
+                }
+            }
+        }
+        ArrayList<String> result = new ArrayList<>();
+        for (int i = found.nextSetBit(0); i >= 0;
+             i = found.nextSetBit(i + 1)) {
+            result.add(_ids.get(i).toString());
+        }
+        return result;
+    }
+
+    /**
+     * Builds the index from every commit of the store, if it has no
+     * file to be read from.
+     */
+    void build() {
+        if (_built) {
+            return;
+        }
+        _built = true;
+        ObjectStore store = ObjectStore.of(_gitlet);
+        try {
+            for (String id : store.ids(".commits")) {
+                if (!_indexed.contains(id)) {
+                    byte[] data = store.read(".commits", id);
+                    Commit c = (Commit) Main.decode(data);
+                    append(ObjectId.of(id), c.getCommitmessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the commits added since the file was last written to its
+     * end, then their count to its header, with the file locked. If
+     * another process wrote the file since it was read, it is read
+     * again first; if it was removed, nothing is written. Nothing is
+     * written for an index yet to be built or a store kept in memory.
+     * @throws IOException
+     */
+    synchronized void save() throws IOException {
+        if (!_built || _saved == _ids.size()
+                || ObjectStore.of(_gitlet) instanceof MemoryStore) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(Paths.get(_gitlet, FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            FileLock lock = out.lock();
+            try {
+                if (!current(out) && !reread(out)) {
+                    return;
+                }
+                write(out);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Writes the commits not in the file, which must be locked, to its
+     * end, then their count to its header.
+     * @param out The file.
+     * @throws IOException
+     */
+    private void write(FileChannel out) throws IOException {
+        if (_saved == _ids.size()) {
+            return;
+        }
+        ArrayList<byte[]> messages = new ArrayList<>();
+        int bytes = 0;
+        for (int i = _saved; i < _ids.size(); i += 1) {
+            byte[] m = _messages.get(i).getBytes(StandardCharsets.UTF_8);
+            messages.add(m);
+            bytes += Pack.ID_BYTES + 4 + m.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        for (int i = _saved; i < _ids.size(); i += 1) {
+            byte[] m = messages.get(i - _saved);
+            buf.put(_ids.get(i).toBytes()).putInt(m.length).put(m);
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf, _end + buf.position());
+        }
+        out.force(false);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(VERSION).putInt(_ids.size()).flip();
+        out.write(header, 0);
+        out.force(false);
+        _saved = _ids.size();
+        _last = _end + bytes - Pack.ID_BYTES - 4
+                - messages.get(messages.size() - 1).length;
+        _end += bytes;
+    }
+
+    /**
+     * Tells if the file, which must be locked, is the one last read or
+     * written: it counts as many commits, and its last is the same. If
+     * nothing was read from it, any file that is not a good one with
+     * commits in it will do.
+     * @param file The file.
+     * @return True if nothing was written to it since.
+     * @throws IOException
+     */
+    private boolean current(FileChannel file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        file.read(header, 0);
+        boolean good = header.position() == HEADER
+                && header.getInt(0) == MAGIC && header.getInt(4) == VERSION;
+        if (_saved == 0) {
+            return !good || header.getInt(8) == 0;
+        }
+        if (!good || header.getInt(8) != _saved) {
+            return false;
+        }
+        ByteBuffer last = ByteBuffer.allocate(Pack.ID_BYTES);
+        file.read(last, _last);
+        return last.position() == Pack.ID_BYTES
+                && ObjectId.of(last.array(), 0).equals(_ids.get(_saved - 1));
+    }
+
+    /**
+     * Reads the index again from the file, which must be locked, then
+     * adds back the commits that were not saved and that it lacks.
+     * @param file The file.
+     * @return False, reading nothing, if the file is not a good one.
+     * @throws IOException
+     */
+    private boolean reread(FileChannel file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) file.size());
+        while (buf.hasRemaining()) {
+            if (file.read(buf, buf.position()) < 0) {
+                break;
+            }
+        }
+        if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC
+                || buf.getInt(4) != VERSION) {
+            return false;
+        }
+        List<ObjectId> ids = new ArrayList<>(_ids.subList(_saved,
+                _ids.size()));
+        List<String> messages = new ArrayList<>(_messages.subList(_saved,
+                _ids.size()));
+        _indexed = new IdSet();
+        _ids = new ArrayList<>();
+        _messages = new ArrayList<>();
+        _exact = new HashMap<>();
+        _words = null;
+        _built = false;
+        read(buf);
+        build();
+        for (int i = 0; i < ids.size(); i += 1) {
+            if (!_indexed.contains(ids.get(i))) {
+                append(ids.get(i), messages.get(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the commits counted in the file, if there is a good one.
+     */
+    private void load() {
+        if (ObjectStore.of(_gitlet) instanceof MemoryStore) {
+            return;
+        }
+        Path file = Paths.get(_gitlet, FILE);
+        try {
+            if (Files.exists(file)) {
+                read(ByteBuffer.wrap(Files.readAllBytes(file)));
+            }
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    /**
+     * Reads the commits counted in the bytes of a file, if it is a good
+     * one.
+     * @param buf The bytes.
+     */
+    private void read(ByteBuffer buf) {
+        if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC
+                || buf.getInt(4) != VERSION) {
+            return;
+        }
+        int count = buf.getInt(8);
+        buf.position(HEADER);
+        byte[] id = new byte[Pack.ID_BYTES];
+        long last = HEADER;
+        for (int i = 0; i < count; i += 1) {
+            if (buf.remaining() < Pack.ID_BYTES + 4) {
+                return;
+            }
+            last = buf.position();
+            buf.get(id);
+            int length = buf.getInt();
+            if (length < 0 || buf.remaining() < length) {
+                return;
+            }
+            String message = new String(buf.array(), buf.position(),
+                    length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+            append(ObjectId.of(id, 0), message);
+        }
+        _built = true;
+        _saved = count;
+        _end = buf.position();
+        _last = last;
+    }
+
+    /**
+     * Adds a commit at the end of the index.
+     * @param id Its id.
+     * @param message Its message.
+     */
+    private void append(ObjectId id, String message) {
+        int i = _ids.size();
+        _indexed.add(id);
+        _ids.add(id);
+        _messages.add(message);
+        _exact.computeIfAbsent(message, m -> new ArrayList<>()).add(i);
+        if (_words != null) {
+            addWords(i);
+        }
+    }
+
+    /**
+     * Returns the commits with each word, indexing the words of every
+     * message when first asked.
+     * @return The numbers of the commits, by word.
+     */
+    private HashMap<String, BitSet> words() {
+        if (_words == null) {
+            _words = new HashMap<>();
+            for (int i = 0; i < _messages.size(); i += 1) {
+                addWords(i);
+            }
+        }
+        return _words;
+    }
+
+    /**
+     * Puts a commit under each word of its message.
+     * @param i The number of the commit.
+     */
+    private void addWords(int i) {
+        for (String word : words(_messages.get(i))) {
+            _words.computeIfAbsent(word, w -> new BitSet()).set(i);
+        }
+    }
+
+    /**
+     * Splits text into words: runs of letters and digits, in lower case.
+     * @param text The text.
+     * @return The words, empty if it has none.
+     */
+    private static List<String> words(String text) {
+        ArrayList<String> result = new ArrayList<>();
+        for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+}
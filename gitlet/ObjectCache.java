@@ -0,0 +1,193 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The objects a command has decoded, commits and blob contents, kept
+ * by folder and id so that reading one again, as merge and checkout
+ * do, costs a lookup. Objects are named by the hash of their content
+ * and never change, so nothing is ever invalidated; the least recently
+ * used are dropped once the cache holds more than BYTES, each object
+ * weighing about what it takes decoded on the heap, which for a
+ * compressed commit is well over its stored size. An object heavier
+ * than an eighth of the cache is not kept at all, so one big file
+ * cannot push everything else out. The contents of blobs are kept in
+ * a folder of their own, CONTENTS, apart from the Blobs decoded from
+ * .blobs, so a lookup never finds an object of another type.
+ *
+ * Run with -Dgitlet.cache.stats=true, a command prints how often the
+ * cache was hit and missed to the standard error when it ends.
+ * @author Yu Xi Gui
+ */
+final class ObjectCache {
+    /**The most bytes of objects kept.*/
+    static final long BYTES = 32L << 20;
+    /**The bytes counted for each object beyond what it holds.*/
+    static final int OVERHEAD = 128;
+    /**The bytes counted for a String beyond its characters.*/
+    private static final int STRING = 40;
+    /**The bytes counted for an entry of a map beyond its key and
+     * value.*/
+    private static final int MAP_ENTRY = 48;
+    /**The folder blob contents, as byte arrays, are kept under.*/
+    static final String CONTENTS = ".contents";
+    /**The property asking for the counts to be printed.*/
+    static final String STATS = "gitlet.cache.stats";
+
+    /**The objects kept, by folder and id, least recently used first.*/
+    private static final LinkedHashMap<String, Entry> ENTRIES =
+            new LinkedHashMap<>(64, 0.75f, true);
+    /**The bytes the objects kept weigh.*/
+    private static long _bytes;
+    /**How many lookups found their object.*/
+    private static long _hits;
+    /**How many lookups did not.*/
+    private static long _misses;
+
+    /**Not to be made.*/
+    private ObjectCache() {
+    }
+
+    /**
+     * Returns a kept object.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return The object, or null if it is not kept.
+     */
+    static synchronized Object get(String folder, String id) {
+        Entry e = ENTRIES.get(folder + id);
+        if (e == null) {
+            _misses += 1;
+            return null;
+        }
+        _hits += 1;
+        return e._value;
+    }
+
+    /**
+     * Keeps an object just decoded, dropping the least recently used
+     * ones to make room for it.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @param value The object, which must not be changed afterwards.
+     */
+    static synchronized void put(String folder, String id, Object value) {
+        long weight = weigh(value) + OVERHEAD;
+        if (weight > BYTES / 8) {
+            return;
+        }
+        Entry old = ENTRIES.put(folder + id, new Entry(value, weight));
+        if (old != null) {
+            _bytes -= old._weight;
+        }
+        _bytes += weight;
+        Iterator<Entry> eldest = ENTRIES.values().iterator();
+        while (_bytes > BYTES && eldest.hasNext()) {
+            _bytes -= eldest.next()._weight;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Returns about how many bytes an object takes decoded, beyond
+     * OVERHEAD: the content of a blob, the strings of a commit, the
+     * entries of a tree and the chunks of a chunk list.
+     * @param value The object.
+     * @return The weight.
+     */
+    static long weigh(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof Blob) {
+            return ((Blob) value).getContent().length;
+        } else if (value instanceof Commit) {
+            Commit c = (Commit) value;
+            return weigh(c.getId()) + weigh(c.getParentOne())
+                    + weigh(c.getParent2()) + weigh(c.getTreeId())
+                    + weigh(c.getCommitmessage());
+        } else if (value instanceof Tree) {
+            Tree t = (Tree) value;
+            long weight = 0;
+            for (Map<String, String> m : List.of(t.getFiles(),
+                    t.getDirs())) {
+                for (Map.Entry<String, String> e : m.entrySet()) {
+                    weight += MAP_ENTRY + weigh(e.getKey())
+                            + weigh(e.getValue());
+                }
+            }
+            return weight;
+        } else if (value instanceof Chunks) {
+            return ((Chunks) value).getIds().size()
+                    * (long) (2 * STRING + 2 * Pack.ID_BYTES);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns about how many bytes a String takes.
+     * @param s The String, or null.
+     * @return The weight.
+     */
+    private static long weigh(String s) {
+        return s == null ? 0 : STRING + s.length();
+    }
+
+    /**
+     * Returns how many lookups found their object.
+     * @return The count.
+     */
+    static synchronized long hits() {
+        return _hits;
+    }
+
+    /**
+     * Returns how many lookups did not find their object.
+     * @return The count.
+     */
+    static synchronized long misses() {
+        return _misses;
+    }
+
+    /**
+     * Returns the bytes the objects kept weigh.
+     * @return The weight.
+     */
+    static synchronized long bytes() {
+        return _bytes;
+    }
+
+    /**
+     * Prints the counts to the standard error, if asked for by the
+     * gitlet.cache.stats property.
+     */
+    static synchronized void report() {
+        if (Boolean.getBoolean(STATS)) {
+            System.err.println("Object cache: " + _hits + " hits, "
+                    + _misses + " misses, " + ENTRIES.size()
+                    + " objects in " + _bytes + " bytes.");
+        }
+    }
+
+    /**
+     * A kept object and its weight.
+     */
+    private static class Entry {
+        /**The object.*/
+        private final Object _value;
+        /**The bytes it is counted as.*/
+        private final long _weight;
+
+        /**
+         * An entry.
+         * @param value The object.
+         * @param weight The bytes it is counted as.
+         */
+        Entry(Object value, long weight) {
+            _value = value;
+            _weight = weight;
+        }
+    }
+}
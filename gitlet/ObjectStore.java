@@ -0,0 +1,207 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Where the objects of a repository are kept: blobs, commits and trees,
+ * each under its id in its folder, as the bytes Main.encode gives them,
+ * compressed or not. Every object the commands read or write goes
+ * through a store, so how objects are laid out can change without the
+ * commands knowing.
+ *
+ * The store of a repository is a FileStore over its gitlet directory,
+ * unless the gitlet.store property is "memory": it is then a
+ * MemoryStore, which keeps objects on the heap for as long as the
+ * process lives, for tests and benchmarks that run commands through
+ * Main.run and should not touch the disk.
+ * @author Yu Xi Gui
+ */
+interface ObjectStore {
+    /**The property naming the kind of store used.*/
+    String PROPERTY = "gitlet.store";
+
+    /**
+     * Returns the store of the repository whose gitlet directory, or
+     * that of one of its working trees, is given.
+     * @param gitlet The gitlet directory.
+     * @return The store.
+     */
+    static ObjectStore of(String gitlet) {
+        String common = Worktree.common(gitlet);
+        if (inMemory()) {
+            return MemoryStore.of(common);
+        }
+        return FileStore.of(common);
+    }
+
+    /**
+     * Tells if repositories are kept in memory, as the gitlet.store
+     * property asks.
+     * @return True if they are.
+     */
+    static boolean inMemory() {
+        return "memory".equals(System.getProperty(PROPERTY));
+    }
+
+    /**
+     * Returns the stored bytes of an object.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return The stored bytes, or null if there is no such object.
+     * @throws IOException
+     */
+    byte[] read(String folder, String id) throws IOException;
+
+    /**
+     * Opens the stored bytes of an object, without reading it whole if
+     * the store can help it.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return A stream of the stored bytes, or null if there is no such
+     *         object.
+     * @throws IOException
+     */
+    InputStream open(String folder, String id) throws IOException;
+
+    /**
+     * Opens an object as a stream of its encoding, inflating it on the
+     * way if it was stored compressed.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return The stream, or null if there is no such object.
+     * @throws IOException
+     */
+    default InputStream openEncoding(String folder, String id)
+            throws IOException {
+        InputStream raw = open(folder, id);
+        if (raw == null) {
+            return null;
+        }
+        BufferedInputStream in = new BufferedInputStream(raw, Blob.BUFFER);
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        if (first != Main.ZLIB_HEADER) {
+            return in;
+        }
+        return new InflaterInputStream(in);
+    }
+
+    /**
+     * Tells if an object is a chunk list, reading no more of it than
+     * the header of its encoding where the store can help it.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is stored and a chunk list.
+     * @throws IOException
+     */
+    default boolean isChunks(String folder, String id) throws IOException {
+        try (InputStream in = openEncoding(folder, id)) {
+            return in != null
+                    && Codec.readHeader(in, new int[1]) == Codec.CHUNKS;
+        }
+    }
+
+    /**
+     * Tells if the store has an object.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is here.
+     */
+    boolean has(String folder, String id);
+
+    /**
+     * Tells if the store has an object about to be written again, and
+     * if so marks it as written just now, so that a gc running
+     * meanwhile, which spares objects written after its cutoff, does
+     * not remove an object a new one refers to. Every write skipped
+     * because the object is stored goes through here instead of has.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return True if it is here.
+     */
+    default boolean freshen(String folder, String id) {
+        return has(folder, id);
+    }
+
+    /**
+     * Stores objects of one folder, skipping those already stored.
+     * @param folder The folder of the objects.
+     * @param objects Maps hex ids to stored bytes.
+     * @throws IOException
+     */
+    void write(String folder, Map<String, byte[]> objects)
+            throws IOException;
+
+    /**
+     * Stores one object, unless it is already stored.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @param data The stored bytes.
+     * @throws IOException
+     */
+    default void write(String folder, String id, byte[] data)
+            throws IOException {
+        HashMap<String, byte[]> one = new HashMap<>();
+        one.put(id, data);
+        write(folder, one);
+    }
+
+    /**
+     * Stores the object whose stored bytes were streamed to a file, too
+     * big to be held in memory. The file is taken over: it is moved or
+     * deleted.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @param file The file.
+     * @throws IOException
+     */
+    void put(String folder, String id, Path file) throws IOException;
+
+    /**
+     * Lists the ids of the objects in a folder. An id may be listed
+     * more than once.
+     * @param folder The folder.
+     * @return The ids.
+     */
+    Iterable<String> ids(String folder);
+
+    /**
+     * Finds the objects of a folder whose ids start with a prefix,
+     * looking each up in sorted ids instead of listing the folder.
+     * @param folder The folder.
+     * @param prefix The start of the ids, in lower-case hex.
+     * @param limit The most ids to find.
+     * @return The ids found, at most LIMIT of them.
+     * @throws IOException
+     */
+    Set<String> matching(String folder, String prefix, int limit)
+            throws IOException;
+
+    /**
+     * Rewrites the store in its most compact form.
+     * @param paths Maps blob ids to a path they were committed under,
+     *              which tells the versions of a file apart.
+     * @throws IOException
+     */
+    void repack(IdMap<String> paths) throws IOException;
+
+    /**
+     * Removes the objects that are not live and were stored before the
+     * given time.
+     * @param live The ids of the live objects, by folder.
+     * @param paths Maps blob ids to a path they were committed under.
+     * @param cutoff Objects stored after this, in epoch millis, stay.
+     * @return The number of objects removed and the bytes reclaimed.
+     * @throws IOException
+     */
+    long[] prune(Map<String, IdSet> live, IdMap<String> paths,
+                 long cutoff) throws IOException;
+}
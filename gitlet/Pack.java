@@ -0,0 +1,859 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A pack of objects stored back to back in one file, with a sorted
+ * index from object id to offset beside it. Both files are read
+ * through memory maps, so a lookup is a binary search in the index
+ * and a slice of the pack, without opening a file per object.
+ *
+ * The index starts with a header and a 256-entry fan-out table
+ * counting the ids whose first byte is at most each value, followed by
+ * fixed-size entries sorted by id: the 20 id bytes, the folder the
+ * object belongs to, its offset in the pack and its length.
+ *
+ * Versions of the same file may be stored as deltas against another
+ * version, flagged in the folder byte. Such an entry holds the id of
+ * its base followed by the deflated delta. Objects rebuilt from deltas
+ * are kept in a small cache, since the bases of a chain are shared.
+ * Since version 2 of the index, the folder byte of a delta entry also
+ * flags whether its object is a chunk list, so that gc can tell without
+ * rebuilding it; any other entry is told by the header of its encoding.
+ * @author Yu Xi Gui
+ */
+class Pack {
+    /**The magic number heading a pack file.*/
+    static final int PACK_MAGIC = 0x47504b31;
+    /**The magic number heading an index file.*/
+    static final int INDEX_MAGIC = 0x47494431;
+    /**The folders objects in a pack can belong to, by kind number.*/
+    static final String[] FOLDERS = {".commits", ".blobs", Tree.FOLDER};
+    /**The kind number of blobs.*/
+    static final int BLOBS = 1;
+    /**The directory in gitlet the pack lives in.*/
+    static final String DIR = "packs";
+    /**How the names of the packs written by repack start; the rest is
+     * the hash of the pack.*/
+    static final String NAMED = "pack-";
+    /**The number of bytes of an id.*/
+    static final int ID_BYTES = 20;
+    /**The number of bytes of an index entry.*/
+    static final int ENTRY = ID_BYTES + 1 + 8 + 4;
+    /**The number of bytes before the fan-out table in the index.*/
+    static final int INDEX_HEADER = 12;
+    /**Where the entries start in the index.*/
+    static final int ENTRIES = INDEX_HEADER + 256 * 4;
+    /**The number of bytes of the pack header.*/
+    static final int PACK_HEADER = 12;
+    /**Flags an entry whose data is a delta against another entry.*/
+    static final int DELTA = 0x80;
+    /**Flags an entry whose object is a chunk list. Only set on delta
+     * entries, and only to be trusted since version 2 of the index.*/
+    static final int CHUNKED = 0x40;
+    /**The version of the index written.*/
+    static final int INDEX_VERSION = 2;
+    /**The longest chain of deltas an object may be rebuilt through.*/
+    static final int MAX_DEPTH = 10;
+    /**How many other versions of a file are tried as delta bases.*/
+    static final int WINDOW = 8;
+    /**The most bytes of rebuilt objects kept in the cache.*/
+    static final long CACHE_BYTES = 32L << 20;
+    /**The biggest stored object repack puts in a pack. Bigger ones stay
+     * loose, so that neither repacking nor reading them needs them
+     * whole in memory.*/
+    static final long MAX_PACKED = 16L << 20;
+
+    /**The file name suffix of an index.*/
+    static final String INDEX_SUFFIX = ".idx";
+    /**The file name suffix of a pack.*/
+    static final String PACK_SUFFIX = ".pack";
+
+    /**The packs opened so far, by gitlet directory.*/
+    private static HashMap<String, List<Pack>> _open = new HashMap<>();
+
+    /**The mapped index.*/
+    private final ByteBuffer _index;
+    /**The mapped pack, or null if it is too big to map at once.*/
+    private final ByteBuffer _data;
+    /**The channel of the pack file.*/
+    private final FileChannel _channel;
+    /**The index file.*/
+    private final Path _indexFile;
+    /**The pack file.*/
+    private final Path _file;
+    /**The number of objects in the pack.*/
+    private final int _count;
+    /**The version of the index.*/
+    private final int _version;
+    /**Objects rebuilt from deltas, by entry, least recently used first.*/
+    private final LinkedHashMap<Integer, byte[]> _cache =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /**The number of bytes held in the cache.*/
+    private long _cached;
+
+    /**
+     * Maps the given pack and index.
+     * @param index The index file.
+     * @param pack The pack file.
+     * @throws IOException
+     */
+    private Pack(Path index, Path pack) throws IOException {
+        _indexFile = index;
+        _file = pack;
+        try (FileChannel idx = FileChannel.open(index)) {
+            _index = idx.map(FileChannel.MapMode.READ_ONLY, 0, idx.size());
+        }
+        if (_index.getInt(0) != INDEX_MAGIC) {
+            throw new IOException("bad pack index");
+        }
+        _version = _index.getInt(4);
+        _count = _index.getInt(8);
+        _channel = new RandomAccessFile(pack.toFile(), "r").getChannel();
+        if (_channel.size() <= Integer.MAX_VALUE) {
+            _data = _channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    _channel.size());
+        } else {
+            _data = null;
+        }
+    }
+
+    /**
+     * Returns the packs of the repository whose gitlet directory is
+     * given, opening them on first use: the one written by repack and
+     * those sealed from the journal. A pack is only used once its index
+     * is there, since the index is always written last.
+     * @param gitlet The gitlet directory.
+     * @return The packs, empty if the repository has none.
+     */
+    static synchronized List<Pack> all(String gitlet) {
+        if (_open.containsKey(gitlet)) {
+            return _open.get(gitlet);
+        }
+        ArrayList<Pack> packs = new ArrayList<>();
+        Path dir = Utils.join(gitlet, DIR).toPath();
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+                    "*" + INDEX_SUFFIX)) {
+                for (Path index : files) {
+                    packs.add(new Pack(index, packOf(index)));
+                }
+            } catch (IOException e) {
+                System.out.println("IOException: " + e.getMessage());
+            }
+        }
+        _open.put(gitlet, packs);
+        return packs;
+    }
+
+    /**
+     * Returns the pack file an index belongs to.
+     * @param index The index file.
+     * @return The pack file beside it.
+     */
+    static Path packOf(Path index) {
+        String name = index.getFileName().toString();
+        return index.resolveSibling(name.substring(0,
+                name.length() - INDEX_SUFFIX.length()) + PACK_SUFFIX);
+    }
+
+    /**
+     * Forgets the packs opened for the given gitlet directory, so the
+     * next use maps the files again.
+     * @param gitlet The gitlet directory.
+     */
+    static synchronized void forget(String gitlet) {
+        _open.remove(gitlet);
+    }
+
+    /**
+     * Returns the pack file.
+     * @return The path.
+     */
+    Path file() {
+        return _file;
+    }
+
+    /**
+     * Returns the index file.
+     * @return The path.
+     */
+    Path indexFile() {
+        return _indexFile;
+    }
+
+    /**
+     * Returns the number of objects in this pack.
+     * @return The count.
+     */
+    int size() {
+        return _count;
+    }
+
+    /**
+     * Finds the index entry of the given id with a binary search
+     * bounded by the fan-out table.
+     * @param id The hex id of the object.
+     * @return The entry number, or -1 if not in the pack.
+     */
+    int find(String id) {
+        if (id == null || id.length() != 2 * ID_BYTES) {
+            return -1;
+        }
+        byte[] key;
+        try {
+            key = toBytes(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : _index.getInt(INDEX_HEADER + 4 * first - 4);
+        int hi = _index.getInt(INDEX_HEADER + 4 * first) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the ids of the objects of a folder that start with a prefix
+     * to a set, until it holds LIMIT ids. The first entry not below the
+     * prefix is found with a binary search bounded by the fan-out
+     * table, and the entries from there on are read while they match.
+     * @param folder The folder.
+     * @param prefix The start of the ids, in lower-case hex.
+     * @param limit The size the set may reach.
+     * @param result The set.
+     */
+    void matching(String folder, String prefix, int limit,
+                  Set<String> result) {
+        StringBuilder low = new StringBuilder(prefix);
+        while (low.length() < 2 * ID_BYTES) {
+            low.append('0');
+        }
+        byte[] key = toBytes(low.toString());
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : _index.getInt(INDEX_HEADER + 4 * first - 4);
+        int hi = _count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < _count && result.size() < limit; i += 1) {
+            String id = id(i);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            if (FOLDERS[kind(i)].equals(folder)) {
+                result.add(id);
+            }
+        }
+    }
+
+    /**
+     * Compares the id of the given entry with KEY.
+     * @param entry The entry number.
+     * @param key The id bytes.
+     * @return Negative, zero or positive as the entry sorts before, with
+     * or after KEY.
+     */
+    private int compare(int entry, byte[] key) {
+        int at = ENTRIES + entry * ENTRY;
+        for (int i = 0; i < ID_BYTES; i += 1) {
+            int c = (_index.get(at + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the stored bytes of the object with the given id if it is
+     * in the given folder.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return The stored bytes, or null if not in this pack.
+     */
+    byte[] read(String folder, String id) {
+        int entry = find(id);
+        if (entry < 0 || !FOLDERS[kind(entry)].equals(folder)) {
+            return null;
+        }
+        return read(entry);
+    }
+
+    /**
+     * Returns the stored bytes of the given entry. An entry stored as a
+     * delta is rebuilt from its base, and returned uncompressed. It is
+     * synchronized since the cache of rebuilt objects is shared.
+     * @param entry The entry number.
+     * @return The bytes.
+     */
+    synchronized byte[] read(int entry) {
+        byte[] result = _cache.get(entry);
+        if (result != null) {
+            return result;
+        }
+        int at = ENTRIES + entry * ENTRY;
+        long offset = _index.getLong(at + ID_BYTES + 1);
+        int length = _index.getInt(at + ID_BYTES + 1 + 8);
+        result = new byte[length];
+        try {
+            if (_data != null) {
+                ByteBuffer slice = _data.duplicate();
+                slice.position((int) offset);
+                slice.get(result);
+            } else {
+                MappedByteBuffer region = _channel.map(
+                        FileChannel.MapMode.READ_ONLY, offset, length);
+                region.get(result);
+            }
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            return null;
+        }
+        if ((_index.get(at + ID_BYTES) & DELTA) != 0) {
+            byte[] base = read(find(toHex(Arrays.copyOf(result, ID_BYTES))));
+            byte[] delta = Main.inflate(
+                    Arrays.copyOfRange(result, ID_BYTES, result.length));
+            result = Delta.apply(Main.inflate(base), delta);
+            remember(entry, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stored bytes of the object with the given id if it is
+     * in the given folder, compressed even if it was rebuilt from a
+     * delta, ready to be written to another pack.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return The compressed bytes, or null if not in this pack.
+     */
+    byte[] readDeflated(String folder, String id) {
+        byte[] data = read(folder, id);
+        if (data != null
+                && (data.length == 0 || data[0] != Main.ZLIB_HEADER)) {
+            data = Main.deflate(data);
+        }
+        return data;
+    }
+
+    /**
+     * Opens the stored bytes of the object with the given id if it is in
+     * the given folder. An object kept whole is streamed out of the
+     * mapped pack without copying it; one stored as a delta is rebuilt.
+     * @param folder The folder of the object.
+     * @param id The hex id.
+     * @return A stream of the stored bytes, or null if not in this pack.
+     */
+    InputStream open(String folder, String id) {
+        int entry = find(id);
+        if (entry < 0 || !FOLDERS[kind(entry)].equals(folder)) {
+            return null;
+        }
+        int at = ENTRIES + entry * ENTRY;
+        if (_data == null || (_index.get(at + ID_BYTES) & DELTA) != 0) {
+            byte[] data = read(entry);
+            return data == null ? null : new ByteArrayInputStream(data);
+        }
+        int offset = (int) _index.getLong(at + ID_BYTES + 1);
+        int length = _index.getInt(at + ID_BYTES + 1 + 8);
+        ByteBuffer slice = _data.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return new BufferStream(slice);
+    }
+
+    /**
+     * Keeps a rebuilt object in the cache, dropping the least recently
+     * used ones to stay within CACHE_BYTES.
+     * @param entry The entry number.
+     * @param data The rebuilt bytes.
+     */
+    private void remember(int entry, byte[] data) {
+        if (data.length > CACHE_BYTES) {
+            return;
+        }
+        _cache.put(entry, data);
+        _cached += data.length;
+        Iterator<byte[]> old = _cache.values().iterator();
+        while (_cached > CACHE_BYTES) {
+            _cached -= old.next().length;
+            old.remove();
+        }
+    }
+
+    /**
+     * Returns the number of bytes the given entry takes in the pack.
+     * @param entry The entry number.
+     * @return The length.
+     */
+    int length(int entry) {
+        return _index.getInt(ENTRIES + entry * ENTRY + ID_BYTES + 1 + 8);
+    }
+
+    /**
+     * Returns the kind of the given entry, an index into FOLDERS.
+     * @param entry The entry number.
+     * @return The kind.
+     */
+    int kind(int entry) {
+        return _index.get(ENTRIES + entry * ENTRY + ID_BYTES) & (CHUNKED - 1);
+    }
+
+    /**
+     * Tells if the index says whether the object of an entry is a chunk
+     * list, which it does for delta entries since version 2.
+     * @param entry The entry number.
+     * @return True if chunked answers for it.
+     */
+    boolean knowsChunked(int entry) {
+        return _version >= 2
+                && (_index.get(ENTRIES + entry * ENTRY + ID_BYTES) & DELTA)
+                != 0;
+    }
+
+    /**
+     * Tells if the index flags the object of an entry as a chunk list,
+     * which is only to be trusted if knowsChunked.
+     * @param entry The entry number.
+     * @return True if flagged.
+     */
+    boolean chunked(int entry) {
+        return (_index.get(ENTRIES + entry * ENTRY + ID_BYTES) & CHUNKED)
+                != 0;
+    }
+
+    /**
+     * Returns the hex id of the given entry.
+     * @param entry The entry number.
+     * @return The id.
+     */
+    String id(int entry) {
+        byte[] id = new byte[ID_BYTES];
+        ByteBuffer slice = _index.duplicate();
+        slice.position(ENTRIES + entry * ENTRY);
+        slice.get(id);
+        return toHex(id);
+    }
+
+    /**
+     * Lists the ids of the objects in the given folder.
+     * @param folder The folder.
+     * @return An arraylist of hex ids, in id order.
+     */
+    ArrayList<String> ids(String folder) {
+        ArrayList<String> result = new ArrayList<>();
+        for (int i = 0; i < _count; i += 1) {
+            if (FOLDERS[kind(i)].equals(folder)) {
+                result.add(id(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a new pack and index holding the given objects into the
+     * pack directory of the given gitlet directory, replacing every pack
+     * already there, so the caller must pass the objects of those it
+     * keeps. Objects are read from their sources one at a time as they
+     * are written, so only the window of blobs tried as delta bases is
+     * ever held whole. Both files are written aside and named after the
+     * hash of the pack, so no other pack is ever overwritten. The pack
+     * is renamed into place first and its index last, and only then are
+     * the packs it replaces removed: a reader, or a command that dies
+     * halfway, sees the old packs, or the old and new ones together,
+     * which hold the same objects, but never an index over the wrong
+     * pack.
+     * @param gitlet The gitlet directory.
+     * @param objects Maps folders to maps of hex ids to the sources of
+     *                their stored bytes.
+     * @param paths Maps blob ids to a path they were committed under,
+     *              which decides which blobs are tried as delta bases.
+     * @throws IOException
+     */
+    static void write(String gitlet,
+                      HashMap<String, TreeMap<String, Source>> objects,
+                      IdMap<String> paths)
+            throws IOException {
+        File dir = Utils.join(gitlet, DIR);
+        dir.mkdirs();
+        File pack = Files.createTempFile(dir.toPath(), NAMED, ".tmp")
+                .toFile();
+        File index = Files.createTempFile(dir.toPath(), NAMED, ".tmp")
+                .toFile();
+        MessageDigest digest = Blob.digest();
+        Writer w;
+        try (FileOutputStream packFile = new FileOutputStream(pack);
+             DataOutputStream p = new DataOutputStream(
+                new BufferedOutputStream(new DigestOutputStream(
+                        packFile, digest)))) {
+            int count = 0;
+            for (TreeMap<String, Source> objs : objects.values()) {
+                count += objs.size();
+            }
+            p.writeInt(PACK_MAGIC);
+            p.writeInt(1);
+            p.writeInt(count);
+            w = new Writer(p);
+            TreeMap<String, Source> blobs = objects.get(".blobs");
+            if (blobs != null) {
+                for (ArrayList<String> group : groups(blobs, paths)) {
+                    writeDeltas(w, group, blobs);
+                }
+            }
+            for (int k = 0; k < FOLDERS.length; k += 1) {
+                TreeMap<String, Source> objs = objects.get(FOLDERS[k]);
+                if (objs == null) {
+                    continue;
+                }
+                for (Map.Entry<String, Source> e : objs.entrySet()) {
+                    if (!w.has(e.getKey())) {
+                        w.add(e.getKey(), k, e.getValue().read());
+                    }
+                }
+            }
+            p.flush();
+            packFile.getFD().sync();
+        }
+        writeIndex(index, w._entries);
+        String name = NAMED + toHex(digest.digest());
+        Path newPack = Utils.join(dir, name + PACK_SUFFIX).toPath();
+        Path newIndex = Utils.join(dir, name + INDEX_SUFFIX).toPath();
+        List<Pack> old = all(gitlet);
+        forget(gitlet);
+        for (Pack o : old) {
+            o._channel.close();
+        }
+        if (Files.exists(newIndex)) {
+            Files.delete(pack.toPath());
+            Files.delete(index.toPath());
+        } else {
+            Files.move(pack.toPath(), newPack,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(index.toPath(), newIndex,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        for (Pack o : old) {
+            if (!o._indexFile.equals(newIndex)) {
+                Files.deleteIfExists(o._indexFile);
+                Files.deleteIfExists(o._file);
+            }
+        }
+    }
+
+    /**
+     * Writes an index for a pack whose entries are already laid out, and
+     * forces it to disk.
+     * @param index The index file.
+     * @param entries Maps hex ids to their kind, offset and length.
+     * @throws IOException
+     */
+    static void writeIndex(File index, TreeMap<String, long[]> entries)
+            throws IOException {
+        int[] fanout = new int[256];
+        for (String id : entries.keySet()) {
+            fanout[toBytes(id)[0] & 0xff] += 1;
+        }
+        try (FileOutputStream out = new FileOutputStream(index);
+             DataOutputStream x = new DataOutputStream(
+                new BufferedOutputStream(out))) {
+            writeIndexHeader(x, entries.size(), fanout);
+            for (Map.Entry<String, long[]> e : entries.entrySet()) {
+                long[] v = e.getValue();
+                writeEntry(x, e.getKey(), (int) v[0], v[1], (int) v[2]);
+            }
+            x.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Writes the header and fan-out table of an index.
+     * @param x Where to write.
+     * @param count The number of entries.
+     * @param fanout How many ids start with each byte value.
+     * @throws IOException
+     */
+    private static void writeIndexHeader(DataOutputStream x, int count,
+                                         int[] fanout) throws IOException {
+        x.writeInt(INDEX_MAGIC);
+        x.writeInt(INDEX_VERSION);
+        x.writeInt(count);
+        int total = 0;
+        for (int n : fanout) {
+            total += n;
+            x.writeInt(total);
+        }
+    }
+
+    /**
+     * Writes one entry of an index.
+     * @param x Where to write.
+     * @param id The hex id.
+     * @param kind The kind byte.
+     * @param offset The offset of the data in the pack.
+     * @param length The length of the data.
+     * @throws IOException
+     */
+    private static void writeEntry(DataOutputStream x, String id, int kind,
+                                   long offset, int length)
+            throws IOException {
+        x.write(toBytes(id));
+        x.writeByte(kind);
+        x.writeLong(offset);
+        x.writeInt(length);
+    }
+
+    /**
+     * Groups the blobs tried as delta bases of each other: those
+     * committed under the same path, in groups of two or more.
+     * @param blobs Maps blob ids to their sources.
+     * @param paths Maps blob ids to a path.
+     * @return The groups of ids.
+     */
+    private static ArrayList<ArrayList<String>> groups(
+            TreeMap<String, Source> blobs, IdMap<String> paths) {
+        HashMap<String, ArrayList<String>> byPath = new HashMap<>();
+        for (String id : blobs.keySet()) {
+            String path = paths.get(id);
+            if (path != null) {
+                byPath.computeIfAbsent(path, k -> new ArrayList<>()).add(id);
+            }
+        }
+        ArrayList<ArrayList<String>> result = new ArrayList<>();
+        for (ArrayList<String> group : byPath.values()) {
+            if (group.size() >= 2) {
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a group of blobs, choosing which to store as deltas. The
+     * group is sorted by size, largest first, so the newest version of
+     * a growing file usually stays whole. Each blob is then compared
+     * with the WINDOW blobs written before it, and stored as a delta
+     * against the one giving the smallest result, if that is smaller
+     * than the blob itself and the base is not already at the end of a
+     * MAX_DEPTH chain. Only the blobs of the window are kept inflated;
+     * the sizes are found first, inflating one blob at a time.
+     * @param w The pack being written.
+     * @param group The ids of the blobs.
+     * @param blobs Maps blob ids to their sources.
+     * @throws IOException
+     */
+    private static void writeDeltas(Writer w, ArrayList<String> group,
+                                    TreeMap<String, Source> blobs)
+            throws IOException {
+        HashMap<String, Integer> size = new HashMap<>();
+        for (String id : group) {
+            size.put(id, Main.inflate(blobs.get(id).read()).length);
+        }
+        group.sort((a, b) -> size.get(b) - size.get(a));
+        LinkedHashMap<String, byte[]> window = new LinkedHashMap<>();
+        HashMap<String, Integer> depth = new HashMap<>();
+        for (String id : group) {
+            byte[] stored = blobs.get(id).read();
+            byte[] raw = Main.inflate(stored);
+            byte[] best = null;
+            String bestBase = null;
+            int limit = stored.length - ID_BYTES;
+            for (Map.Entry<String, byte[]> e : window.entrySet()) {
+                String base = e.getKey();
+                if (depth.getOrDefault(base, 0) >= MAX_DEPTH) {
+                    continue;
+                }
+                byte[] delta = Main.deflate(Delta.create(e.getValue(), raw));
+                if (delta.length < limit
+                        && (best == null || delta.length < best.length)) {
+                    best = delta;
+                    bestBase = base;
+                }
+            }
+            if (best != null) {
+                byte[] data = new byte[ID_BYTES + best.length];
+                System.arraycopy(toBytes(bestBase), 0, data, 0, ID_BYTES);
+                System.arraycopy(best, 0, data, ID_BYTES, best.length);
+                w.add(id, BLOBS | DELTA | chunkFlag(raw), data);
+                depth.put(id, depth.getOrDefault(bestBase, 0) + 1);
+            } else {
+                w.add(id, BLOBS, stored);
+            }
+            window.put(id, raw);
+            if (window.size() > WINDOW) {
+                Iterator<String> eldest = window.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the flag of the kind byte telling if an object is a chunk
+     * list.
+     * @param raw The encoding of the object.
+     * @return CHUNKED for a chunk list, else 0.
+     */
+    private static int chunkFlag(byte[] raw) {
+        return raw.length >= 2 && raw[0] == Codec.MAGIC
+                && raw[1] == Codec.CHUNKS ? CHUNKED : 0;
+    }
+
+    /**
+     * Converts a hex id to its bytes.
+     * @param hex The hex id.
+     * @return The bytes.
+     */
+    static byte[] toBytes(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(
+                    hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /**
+     * Converts id bytes to hex.
+     * @param id The bytes.
+     * @return The hex id.
+     */
+    static String toHex(byte[] id) {
+        StringBuilder result = new StringBuilder(2 * id.length);
+        for (byte b : id) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Where the stored bytes of an object to be packed are read from,
+     * when it is written.
+     */
+    interface Source {
+        /**
+         * Reads the stored bytes.
+         * @return The bytes, compressed.
+         * @throws IOException
+         */
+        byte[] read() throws IOException;
+    }
+
+    /**
+     * A pack being written: the stream of its objects, and the index
+     * entries of those written so far.
+     */
+    private static class Writer {
+        /**The stream of the pack, past its header.*/
+        private final DataOutputStream _out;
+        /**Maps the ids written to their kind, offset and length.*/
+        private final TreeMap<String, long[]> _entries = new TreeMap<>();
+        /**Where the next object starts.*/
+        private long _offset = PACK_HEADER;
+
+        /**
+         * A pack whose header was written to OUT.
+         * @param out The stream.
+         */
+        Writer(DataOutputStream out) {
+            _out = out;
+        }
+
+        /**
+         * Tells if an object was written.
+         * @param id The hex id.
+         * @return True if it was.
+         */
+        boolean has(String id) {
+            return _entries.containsKey(id);
+        }
+
+        /**
+         * Writes an object at the end of the pack.
+         * @param id The hex id.
+         * @param kind The kind byte.
+         * @param data The entry data.
+         * @throws IOException
+         */
+        void add(String id, int kind, byte[] data) throws IOException {
+            _out.write(data);
+            _entries.put(id, new long[] {kind, _offset, data.length});
+            _offset += data.length;
+        }
+    }
+
+    /**
+     * A stream over the remaining bytes of a buffer.
+     */
+    private static class BufferStream extends InputStream {
+        /**The buffer read.*/
+        private final ByteBuffer _buf;
+
+        /**
+         * A stream over BUF, from its position to its limit.
+         * @param buf The buffer.
+         */
+        BufferStream(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return _buf.hasRemaining() ? _buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!_buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, _buf.remaining());
+            _buf.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -1,16 +1,40 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
- * The class that mirrors a stage.
+ * The class that mirrors a stage. It is kept on disk as a StageIndex,
+ * with one entry per path, and saved by writing over only the entries
+ * that changed when no path came or went.
+ *
+ * A stage read from its index keeps the index mapped: the blobs of the
+ * head commit are looked up in it as asked for, and only the entries of
+ * paths staged, removed, untracked, modified or deleted are read into
+ * the maps. The sizes, times and ids of files hashed since are kept
+ * beside it. Whether the stage changed, and which entries to write, is
+ * found from those paths alone, unless the head commit changed.
  * @author Yu Xi Gui
  */
-public class Stage implements Serializable {
+public class Stage {
+    /**The folder older versions kept added blobs in until commit.*/
+    static final String TEMP_BLOBS = ".temp_blobs";
+    /**How recently, in millis, a file may have changed before being
+     * hashed for its id not to be trusted: a change made in the same
+     * tick of the file system clock leaves its time as it was.*/
+    static final long RACY = 2000;
+
     /**A variable that tracks file added to stage.*/
     private HashMap<String, String> addToStage;
     /**To track files removed from stage.*/
@@ -22,7 +46,20 @@ public class Stage implements Serializable {
     /**Files that are tracked but deleted.*/
     private HashMap<String, String> trackDelete;
     /**The set of cur blobs the stage has.*/
-    private HashMap<String, String> _currBlobs;
+    private Map<String, String> _currBlobs;
+    /**The size, time and inode of files hashed since the index was
+     * read, by name, null for a file that could not be read.*/
+    private HashMap<String, long[]> _stats;
+    /**The ids files hashed to since the index was read, by name, null
+     * if they cannot be trusted.*/
+    private HashMap<String, String> _hashes;
+    /**The index this stage was read from or last saved to, or null.*/
+    private StageIndex _saved;
+    /**The paths in the index that are in the stage for more than the
+     * head commit.*/
+    private HashSet<String> _touched = new HashSet<>();
+    /**Whether the blobs of the head commit are not the index's.*/
+    private boolean _newHead = true;
 
     /**
      * The stage constructor.
@@ -34,8 +71,397 @@ public class Stage implements Serializable {
         untracked = new HashMap<>();
         trackModified = new HashMap<>();
         trackDelete = new HashMap<>();
+        _stats = new HashMap<>();
+        _hashes = new HashMap<>();
+    }
+
+    /**
+     * Writes this stage into an encoding.
+     * @param out Where to write.
+     */
+    void encode(Codec.Out out) {
+        out.writeIds(_currBlobs);
+        out.writeIds(addToStage);
+        out.writeIds(removedStage);
+        out.writeIds(untracked);
+        out.writeIds(trackModified);
+        out.writeIds(trackDelete);
+    }
+
+    /**
+     * Returns the entries of the index of this stage, one per path in
+     * any of its maps.
+     * @return The entries, by path.
+     */
+    TreeMap<String, StageIndex.Entry> entries() {
+        TreeMap<String, StageIndex.Entry> result = new TreeMap<>();
+        flag(result, _currBlobs, StageIndex.HEAD);
+        flag(result, addToStage, StageIndex.ADDED);
+        flag(result, removedStage, StageIndex.REMOVED);
+        flag(result, untracked, StageIndex.UNTRACKED);
+        flag(result, trackModified, StageIndex.MODIFIED);
+        flag(result, trackDelete, StageIndex.DELETED);
+        for (Map.Entry<String, StageIndex.Entry> e : result.entrySet()) {
+            fill(e.getKey(), e.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entry of the index this stage has for one path.
+     * @param path The path.
+     * @return The entry, or null if the path is in no part of the stage.
+     */
+    private StageIndex.Entry entry(String path) {
+        StageIndex.Entry e = new StageIndex.Entry();
+        flag(e, _currBlobs, path, StageIndex.HEAD);
+        flag(e, addToStage, path, StageIndex.ADDED);
+        flag(e, removedStage, path, StageIndex.REMOVED);
+        flag(e, untracked, path, StageIndex.UNTRACKED);
+        flag(e, trackModified, path, StageIndex.MODIFIED);
+        flag(e, trackDelete, path, StageIndex.DELETED);
+        return e.flags() == 0 ? null : fill(path, e);
+    }
+
+    /**
+     * Sets a flag on an entry if its path is in a map.
+     * @param e The entry.
+     * @param map The map.
+     * @param path The path.
+     * @param flag The flag.
+     */
+    private static void flag(StageIndex.Entry e, Map<String, String> map,
+                             String path, int flag) {
+        if (map != null && map.containsKey(path)) {
+            e.set(flag);
+        }
+    }
+
+    /**
+     * Fills in the blobs of an entry whose flags are set, and the size,
+     * time, inode and id of its file when last hashed.
+     * @param path The path.
+     * @param e The entry.
+     * @return The entry.
+     */
+    private StageIndex.Entry fill(String path, StageIndex.Entry e) {
+        e.head(_currBlobs.get(path)).staged(addToStage.get(path));
+        long[] stat = lastStat(path);
+        if (stat != null) {
+            e.stat(stat[0], stat[1], stat[2], lastHash(path));
+        }
+        return e;
+    }
+
+    /**
+     * Returns the entry the index read has for a path.
+     * @param path The path.
+     * @return The entry, or null if it has none.
+     */
+    private StageIndex.Entry saved(String path) {
+        int i = _saved == null ? -1 : _saved.find(path);
+        return i < 0 ? null : _saved.entry(i);
+    }
+
+    /**
+     * Returns the size, time and inode of a file when last hashed.
+     * @param path The name of the file.
+     * @return The three, or null if not known.
+     */
+    private long[] lastStat(String path) {
+        if (_stats.containsKey(path)) {
+            return _stats.get(path);
+        }
+        StageIndex.Entry e = saved(path);
+        if (e == null || (e.size() == 0 && e.time() == 0)) {
+            return null;
+        }
+        return new long[] {e.size(), e.time(), e.inode()};
+    }
+
+    /**
+     * Returns the id a file hashed to when last hashed.
+     * @param path The name of the file.
+     * @return The id, or null if not known or not to be trusted.
+     */
+    private String lastHash(String path) {
+        if (_hashes.containsKey(path)) {
+            return _hashes.get(path);
+        }
+        StageIndex.Entry e = saved(path);
+        return e == null ? null : e.work();
+    }
+
+    /**
+     * Sets a flag on the entries of the paths of a map.
+     * @param entries The entries, by path.
+     * @param map The map.
+     * @param flag The flag.
+     */
+    private static void flag(TreeMap<String, StageIndex.Entry> entries,
+                             Map<String, String> map, int flag) {
+        if (map != null) {
+            for (String path : map.keySet()) {
+                entries.computeIfAbsent(path, p -> new StageIndex.Entry())
+                        .set(flag);
+            }
+        }
+    }
+
+    /**
+     * Reads the stage from the index of the given gitlet directory.
+     * @param gitlet The gitlet directory.
+     * @return The stage, or null if there is no index.
+     * @throws IOException
+     */
+    static Stage read(String gitlet) throws IOException {
+        StageIndex index = StageIndex.open(gitlet);
+        if (index == null) {
+            return null;
+        }
+        Stage s = new Stage();
+        s.load(index);
+        return s;
+    }
+
+    /**
+     * Takes the index as what this stage is: the head commit's blobs are
+     * looked up in it, and the entries in any other part of the stage
+     * are read into the maps.
+     * @param index The index.
+     */
+    private void load(StageIndex index) {
+        _saved = index;
+        _newHead = false;
+        _currBlobs = index.heads();
+        addToStage = new HashMap<>();
+        removedStage = new HashMap<>();
+        untracked = new HashMap<>();
+        trackModified = new HashMap<>();
+        trackDelete = new HashMap<>();
+        _stats = new HashMap<>();
+        _hashes = new HashMap<>();
+        _touched = new HashSet<>();
+        for (int i = 0; i < index.size(); i += 1) {
+            if ((index.flags(i) & ~StageIndex.HEAD) == 0) {
+                continue;
+            }
+            String path = index.path(i);
+            StageIndex.Entry entry = index.entry(i);
+            _touched.add(path);
+            if (entry.has(StageIndex.ADDED)) {
+                addToStage.put(path, entry.staged());
+            }
+            if (entry.has(StageIndex.REMOVED)) {
+                removedStage.put(path, entry.head());
+            }
+            if (entry.has(StageIndex.UNTRACKED)) {
+                untracked.put(path, null);
+            }
+            if (entry.has(StageIndex.MODIFIED)) {
+                trackModified.put(path, null);
+            }
+            if (entry.has(StageIndex.DELETED)) {
+                trackDelete.put(path, null);
+            }
+        }
+    }
 
+    /**
+     * Saves this stage to the index of the given gitlet directory. If
+     * the index keeps the same paths as when it was read, it is copied
+     * with only the entries that changed written over; otherwise it is
+     * built again from every entry, and a stage.bin left from before is
+     * dropped. The stage then reads the index it saved.
+     * @param gitlet The gitlet directory.
+     * @throws IOException
+     */
+    void save(String gitlet) throws IOException {
+        TreeMap<String, StageIndex.Entry> changed = changes();
+        if (changed != null && _saved.isCurrent()
+                && _saved.file().equals(Paths.get(gitlet, StageIndex.FILE))) {
+            _saved.update(changed);
+        } else {
+            StageIndex.write(gitlet, entries());
+            Files.deleteIfExists(Paths.get(gitlet, "stage.bin"));
+        }
+        load(StageIndex.open(gitlet));
+    }
 
+    /**
+     * Tells if this stage changed since it was read or last saved, by
+     * comparing the entries of the paths it may have changed with the
+     * ones the index has. Its maps are handed out to be changed in
+     * place, so comparing is the only way not to miss a change. A
+     * change to nothing but the stat data of files hashed since may be
+     * left out.
+     * @param stats Whether a change to stat data alone counts.
+     * @return True if it has to be saved.
+     */
+    boolean isDirty(boolean stats) {
+        TreeMap<String, StageIndex.Entry> changed = changes();
+        if (changed == null || stats) {
+            return changed == null || !changed.isEmpty();
+        }
+        for (Map.Entry<String, StageIndex.Entry> e : changed.entrySet()) {
+            if (!e.getValue().sameStage(saved(e.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the entries that changed since the index was read, looking
+     * only at the paths that were, or are now, in a part of the stage
+     * other than the head commit, or that were hashed since.
+     * @return The entries that changed, by path, or null if the index
+     * has to be written again whole: there is none, the head commit
+     * changed, or a path came or went.
+     */
+    private TreeMap<String, StageIndex.Entry> changes() {
+        if (_saved == null || _newHead) {
+            return null;
+        }
+        TreeSet<String> paths = new TreeSet<>(_touched);
+        paths.addAll(addToStage.keySet());
+        paths.addAll(removedStage.keySet());
+        paths.addAll(untracked.keySet());
+        paths.addAll(trackModified.keySet());
+        paths.addAll(trackDelete.keySet());
+        paths.addAll(_stats.keySet());
+        TreeMap<String, StageIndex.Entry> result = new TreeMap<>();
+        for (String path : paths) {
+            StageIndex.Entry now = entry(path);
+            StageIndex.Entry was = saved(path);
+            if ((now == null) != (was == null)) {
+                return null;
+            }
+            if (now != null && !now.equals(was)) {
+                result.put(path, now);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves the blobs an older version of gitlet left staged in
+     * .temp_blobs, uncompressed, into the store, so that a commit finds
+     * them there, then removes the folder.
+     * @param gitlet The gitlet directory.
+     * @throws IOException
+     */
+    static void adoptStaged(String gitlet) throws IOException {
+        File[] staged = Paths.get(gitlet, TEMP_BLOBS).toFile()
+                .listFiles(File::isFile);
+        if (staged == null) {
+            return;
+        }
+        ObjectStore store = ObjectStore.of(gitlet);
+        HashMap<String, byte[]> objects = new HashMap<>();
+        for (File f : staged) {
+            if (!store.has(".blobs", f.getName())) {
+                objects.put(f.getName(),
+                        Main.deflate(Utils.readContents(f)));
+            }
+        }
+        store.write(".blobs", objects);
+        for (File f : staged) {
+            Files.delete(f.toPath());
+        }
+        Files.delete(Paths.get(gitlet, TEMP_BLOBS));
+    }
+
+    /**
+     * Returns the id of a file in the cur directory. The file is only
+     * read and hashed if its size, time or inode changed since it was
+     * last hashed, or if it had changed too recently then for the id
+     * to be trusted.
+     * @param fileName The name of the file.
+     * @return The id, or null if the file cannot be read.
+     */
+    String hashOf(String fileName) {
+        long now = System.currentTimeMillis();
+        long[] stat = statOf(Paths.get(Main.CWD, fileName));
+        if (stat == null) {
+            _stats.put(fileName, null);
+            _hashes.put(fileName, null);
+            return null;
+        }
+        String id = knownHash(fileName, stat);
+        if (id != null) {
+            return id;
+        }
+        id = Main.hashCWDFile("", fileName);
+        hashed(fileName, stat, id, now);
+        return id;
+    }
+
+    /**
+     * Returns the id a file hashed to when last hashed, if it has not
+     * changed since.
+     * @param fileName The name of the file.
+     * @param stat Its size, time and inode now.
+     * @return The id, or null if the file must be read to know it.
+     */
+    private String knownHash(String fileName, long[] stat) {
+        String id = lastHash(fileName);
+        return id != null && Arrays.equals(stat, lastStat(fileName))
+                ? id : null;
+    }
+
+    /**
+     * Notes the id a file was just read to, unless it had changed too
+     * recently for the id to be trusted.
+     * @param fileName The name of the file.
+     * @param stat Its size, time and inode before it was read.
+     * @param id The id, or null if it could not be read.
+     * @param now The time before it was read.
+     */
+    private void hashed(String fileName, long[] stat, String id, long now) {
+        _stats.put(fileName, stat);
+        _hashes.put(fileName, id != null && stat[1] + RACY <= now
+                ? id : null);
+    }
+
+    /**
+     * Returns the size, time and inode of a file, the inode being 0
+     * where the file system has none.
+     * @param path The file.
+     * @return The three, or null if the file cannot be read.
+     */
+    private static long[] statOf(Path path) {
+        try {
+            Map<String, Object> a;
+            long inode = 0;
+            try {
+                a = Files.readAttributes(path,
+                        "unix:size,lastModifiedTime,ino");
+                inode = (Long) a.get("ino");
+            } catch (UnsupportedOperationException e) {
+                a = Files.readAttributes(path, "size,lastModifiedTime");
+            }
+            return new long[] {(Long) a.get("size"),
+                ((FileTime) a.get("lastModifiedTime")).toMillis(), inode};
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a stage written by encode.
+     * @param in Where to read.
+     * @return The stage.
+     */
+    static Stage decode(Codec.In in) {
+        Stage s = new Stage();
+        s._currBlobs = in.readIds();
+        s.addToStage = in.readIds();
+        s.removedStage = in.readIds();
+        s.untracked = in.readIds();
+        s.trackModified = in.readIds();
+        s.trackDelete = in.readIds();
+        return s;
     }
 
     /**
@@ -45,6 +471,7 @@ public class Stage implements Serializable {
      */
     public void setBlobs(Commit c) {
         _currBlobs = c.getBlobs();
+        _newHead = true;
     }
 
     /**
@@ -52,6 +479,8 @@ public class Stage implements Serializable {
      * If stage an already staged file, overwrite it with new contents.
      * If the cur version content is the same as the one in the commit,
      * don't stage it to be added and remove it from the stage if it is there.
+     * A file big enough to be chunked whose id is not known already is
+     * not hashed first: its id comes from the pass that stores it.
      * @param fileName The file to be added to stage.
      * @param c The latest commit given by the commitTree.
      */
@@ -59,24 +488,38 @@ public class Stage implements Serializable {
         String id;
         Boolean modified = false;
         if (addToStage.containsKey(fileName)) {
-            String content = ((Blob) Main.readF(".blobs",
-                    _currBlobs.get(fileName))).getContent();
-            Main.writeToCWDFile("", fileName, content);
+            Main.writeBlobToCWDFile("", fileName, _currBlobs.get(fileName));
             id = _currBlobs.get(fileName);
         } else {
-            String gBContent = Main.readCWDFileToString("",
-                    fileName);
-            if (_currBlobs.containsKey(fileName)) {
-                modified = hasChanges(fileName, gBContent, true);
+            Path file = Paths.get(Main.CWD, fileName);
+            long now = System.currentTimeMillis();
+            long[] stat = statOf(file);
+            String workId = stat != null && stat[0] >= Chunks.THRESHOLD
+                    ? knownHash(fileName, stat) : hashOf(fileName);
+            boolean known = workId != null || stat == null;
+            if (known && _currBlobs.containsKey(fileName)) {
+                modified = hasChanges(fileName, workId, true);
                 if (!modified) {
                     removedStage.remove(fileName);
                     return;
                 }
             }
-            if (modified || !_currBlobs.containsKey(fileName)) {
-                Blob temp = new Blob(fileName, gBContent);
-                Main.writeFile(".temp_blobs", temp.getBlobname(), temp);
-                id = temp.getBlobname();
+            if (!known || modified || !_currBlobs.containsKey(fileName)) {
+                try {
+                    id = Blob.store(Main.gitletDir(), ".blobs", file);
+                } catch (IOException e) {
+                    System.out.println("IOException: " + e.getMessage());
+                    return;
+                }
+                if (!known) {
+                    hashed(fileName, stat, id, now);
+                    if (id.equals(_currBlobs.get(fileName))) {
+                        removedStage.remove(fileName);
+                        return;
+                    }
+                } else if (!id.equals(workId)) {
+                    _hashes.put(fileName, null);
+                }
             } else {
                 id = _currBlobs.get(fileName);
             }
@@ -96,23 +539,24 @@ public class Stage implements Serializable {
     }
 
     /**
-     * This method checks if the file has been modified.
+     * This method checks if the file has been modified. Blobs are
+     * addressed by content, so comparing ids is enough and neither the
+     * file nor the stored blob has to be held in memory.
      * @param filename The file name.
-     * @param gBContent The given blob content.
+     * @param workId The id of the file in the cur directory.
      * @param track If it is tracked or not.
      * @return A boolean about whether this file has been
      * changed.
      */
     public boolean hasChanges(String filename,
-                              String gBContent, Boolean track) {
-        Blob currBlob;
+                              String workId, Boolean track) {
+        String currId;
         if (track) {
-            currBlob = (Blob) Main.readF(".blobs", _currBlobs.get(filename));
+            currId = _currBlobs.get(filename);
         } else {
-            currBlob = (Blob) Main.readF(".temp_blobs",
-                    addToStage.get(filename));
+            currId = addToStage.get(filename);
         }
-        return !(currBlob.getContent().equals(gBContent));
+        return workId == null || !workId.equals(currId);
     }
 
     /**
@@ -152,7 +596,6 @@ public class Stage implements Serializable {
             trackModified.remove(fileName);
             untracked.remove(fileName);
             Main.delCDFile("", fileName);
-            Main.deleteFile(".temp_blobs", fileName);
             removedStage.put(fileName, _currBlobs.get(fileName));
         } else if (addToStage.containsKey(fileName)
                 || removedStage.containsKey(fileName)) {
@@ -218,9 +661,10 @@ public class Stage implements Serializable {
         Boolean ec = false;
         if (_currBlobs != null) {
             ArrayList<String> files = Main.getCWDFilesNames("");
+            HashSet<String> present = new HashSet<>(files);
             String content;
             for (String fileName : files) {
-                content = Main.readCWDFileToString("", fileName);
+                content = hashOf(fileName);
                 if (_currBlobs.containsKey(fileName)
                         && hasChanges(fileName, content, true)) {
                     trackModified.put(fileName, null);
@@ -234,21 +678,16 @@ public class Stage implements Serializable {
             }
             if (files.isEmpty() & !_currBlobs.isEmpty()
                     && !trackModified.isEmpty()) {
-                ArrayList<Object> b = Main.readFs(".blobs");
-                for (Object bb : b) {
-                    Blob a = (Blob) bb;
-                    if (a != null && trackModified.containsKey(a.getFilename())
-                            && !files.contains(a.getBlobname())) {
-                        trackDelete.put(a.getFilename(),
-                                trackModified.remove(a.getFilename()));
+                for (String key : _currBlobs.keySet()) {
+                    if (trackModified.containsKey(key)) {
+                        trackDelete.put(key, trackModified.remove(key));
                         ec = true;
                     }
-
                 }
 
             }
             for (String key : _currBlobs.keySet()) {
-                if (!files.contains(key)) {
+                if (!present.contains(key)) {
                     if (!ec) {
                         removedStage.put(key, _currBlobs.get(key));
                     }
@@ -256,7 +695,7 @@ public class Stage implements Serializable {
             }
 
             for (String f : untracked.keySet()) {
-                if (!files.contains(f)) {
+                if (!present.contains(f)) {
                     untracked.remove(f);
                 }
             }
@@ -301,7 +740,7 @@ public class Stage implements Serializable {
      * Acess getcurrblobs.
      * @return A hashmap.
      */
-    public HashMap<String, String> getCurrblobs() {
+    public Map<String, String> getCurrblobs() {
         return _currBlobs;
     }
     /**
@@ -0,0 +1,587 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The stage as it is kept on disk: one entry per path, sorted by path,
+ * telling which parts of the stage the path is in, the blob the head
+ * commit has for it, the blob staged for it, and the size, time and
+ * inode of the file when it was last hashed with the id it hashed to.
+ * It replaces the six maps stage.bin held, which repeated each path
+ * once per map.
+ *
+ * The file is read through a memory map. It starts with a header, the
+ * magic number, the version and the number of entries, followed by
+ * the fixed-size entries and then the bytes of the paths they point
+ * into. An entry is the offset and length of its path, a flags byte,
+ * the two 20-byte ids, zero for none, the size, the time, the inode
+ * and the id of the file as last hashed. Entries of version 1 stop at
+ * the time; such an index is read, then written again whole.
+ *
+ * Entries are read from the map as they are asked for: a path is found
+ * with a binary search, and the blobs of the head commit are handed out
+ * as a map that looks them up that way, so a command reads the entries
+ * of the paths it touches and not the others. Since entries have a
+ * fixed size, a change that leaves the paths alone is made by copying
+ * the mapped bytes with the entries it touches written over, without
+ * reading the rest, and the entries are only built again one by one
+ * when paths come or go. Either way the new index is written aside,
+ * forced to disk and renamed over the old one, so a crash leaves the
+ * old index or the new one and never an entry half written.
+ * @author Yu Xi Gui
+ */
+class StageIndex {
+    /**The name of the index in the gitlet directory.*/
+    static final String FILE = "index";
+    /**The magic number heading the index.*/
+    static final int MAGIC = 0x47534931;
+    /**The number of bytes of the header.*/
+    static final int HEADER = 12;
+    /**The version of the index written.*/
+    static final int VERSION = 2;
+    /**The number of bytes of an entry of version 1.*/
+    static final int ENTRY_V1 = 4 + 4 + 1 + 2 * Pack.ID_BYTES + 8 + 8;
+    /**The number of bytes of an entry.*/
+    static final int ENTRY = ENTRY_V1 + 8 + Pack.ID_BYTES;
+
+    /**Flags a path the head commit tracks.*/
+    static final int HEAD = 1;
+    /**Flags a path staged for addition.*/
+    static final int ADDED = 2;
+    /**Flags a path staged for removal.*/
+    static final int REMOVED = 4;
+    /**Flags a path that is not tracked.*/
+    static final int UNTRACKED = 8;
+    /**Flags a tracked path modified but not staged.*/
+    static final int MODIFIED = 16;
+    /**Flags a tracked path deleted but not staged.*/
+    static final int DELETED = 32;
+
+    /**The id written for none.*/
+    private static final byte[] NONE = new byte[Pack.ID_BYTES];
+
+    /**The index file.*/
+    private final Path _file;
+    /**The mapped index.*/
+    private final MappedByteBuffer _map;
+    /**The version of the index.*/
+    private final int _version;
+    /**The number of bytes of each of its entries.*/
+    private final int _entry;
+    /**The number of entries.*/
+    private final int _count;
+    /**Where the paths start.*/
+    private final int _paths;
+
+    /**
+     * The entry of one path.
+     */
+    static class Entry {
+        /**Which parts of the stage the path is in.*/
+        private int _flags;
+        /**The blob of the head commit, or null.*/
+        private String _head;
+        /**The blob staged, or null.*/
+        private String _staged;
+        /**The size of the file when last hashed.*/
+        private long _size;
+        /**The time the file was last changed when last hashed.*/
+        private long _time;
+        /**The inode of the file when last hashed.*/
+        private long _inode;
+        /**The id the file hashed to, or null.*/
+        private String _work;
+
+        /**
+         * Returns the flags.
+         * @return Which parts of the stage the path is in.
+         */
+        int flags() {
+            return _flags;
+        }
+
+        /**
+         * Tells if a flag is set.
+         * @param flag The flag.
+         * @return True if set.
+         */
+        boolean has(int flag) {
+            return (_flags & flag) != 0;
+        }
+
+        /**
+         * Returns the blob of the head commit.
+         * @return The id, or null.
+         */
+        String head() {
+            return _head;
+        }
+
+        /**
+         * Returns the blob staged.
+         * @return The id, or null.
+         */
+        String staged() {
+            return _staged;
+        }
+
+        /**
+         * Returns the size of the file when last hashed.
+         * @return The size, or 0 if not known.
+         */
+        long size() {
+            return _size;
+        }
+
+        /**
+         * Returns the time the file was last changed when last hashed.
+         * @return Epoch millis, or 0 if not known.
+         */
+        long time() {
+            return _time;
+        }
+
+        /**
+         * Returns the inode of the file when last hashed.
+         * @return The inode, or 0 if not known.
+         */
+        long inode() {
+            return _inode;
+        }
+
+        /**
+         * Returns the id the file hashed to when last hashed.
+         * @return The id, or null if not known.
+         */
+        String work() {
+            return _work;
+        }
+
+        /**
+         * Sets a flag.
+         * @param flag The flag.
+         * @return This entry.
+         */
+        Entry set(int flag) {
+            _flags |= flag;
+            return this;
+        }
+
+        /**
+         * Sets the blob of the head commit.
+         * @param id The id, or null.
+         * @return This entry.
+         */
+        Entry head(String id) {
+            _head = id;
+            return this;
+        }
+
+        /**
+         * Sets the blob staged.
+         * @param id The id, or null.
+         * @return This entry.
+         */
+        Entry staged(String id) {
+            _staged = id;
+            return this;
+        }
+
+        /**
+         * Sets the size, time and inode of the file when last hashed,
+         * and the id it hashed to.
+         * @param size The size.
+         * @param time The time it was last changed, in epoch millis.
+         * @param inode The inode.
+         * @param work The id, or null if it is not to be trusted.
+         * @return This entry.
+         */
+        Entry stat(long size, long time, long inode, String work) {
+            _size = size;
+            _time = time;
+            _inode = inode;
+            _work = work;
+            return this;
+        }
+
+        /**
+         * Tells if another entry puts the path in the same parts of the
+         * stage with the same blobs, whatever the stat data of each.
+         * @param e The other entry.
+         * @return True if only their stat data may differ.
+         */
+        boolean sameStage(Entry e) {
+            return _flags == e._flags && Objects.equals(_head, e._head)
+                    && Objects.equals(_staged, e._staged);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry) o;
+            return _flags == e._flags && _size == e._size
+                    && _time == e._time && _inode == e._inode
+                    && Objects.equals(_head, e._head)
+                    && Objects.equals(_staged, e._staged)
+                    && Objects.equals(_work, e._work);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(_flags, _head, _staged, _size, _time,
+                    _inode, _work);
+        }
+    }
+
+    /**
+     * Maps the given index file.
+     * @param file The index file.
+     * @throws IOException
+     */
+    private StageIndex(Path file) throws IOException {
+        _file = file;
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            _map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        if (_map.capacity() < HEADER || _map.getInt(0) != MAGIC) {
+            throw new IOException("bad stage index");
+        }
+        _version = _map.getInt(4);
+        _entry = _version == 1 ? ENTRY_V1 : ENTRY;
+        _count = _map.getInt(8);
+        _paths = HEADER + _count * _entry;
+    }
+
+    /**
+     * Maps the index of the given gitlet directory.
+     * @param gitlet The gitlet directory.
+     * @return The index, or null if there is none.
+     * @throws IOException
+     */
+    static StageIndex open(String gitlet) throws IOException {
+        Path file = Paths.get(gitlet, FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return new StageIndex(file);
+    }
+
+    /**
+     * Returns the index file.
+     * @return The path.
+     */
+    Path file() {
+        return _file;
+    }
+
+    /**
+     * Returns the number of entries.
+     * @return The count.
+     */
+    int size() {
+        return _count;
+    }
+
+    /**
+     * Tells if this index has the layout written now, so that entries
+     * can be written over in place.
+     * @return True if it is of the current version.
+     */
+    boolean isCurrent() {
+        return _version == VERSION;
+    }
+
+    /**
+     * Returns the path of the given entry.
+     * @param i The entry number.
+     * @return The path.
+     */
+    String path(int i) {
+        int at = HEADER + i * _entry;
+        byte[] bytes = new byte[_map.getInt(at + 4)];
+        ByteBuffer slice = _map.duplicate();
+        slice.position(_paths + _map.getInt(at));
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the flags of the given entry.
+     * @param i The entry number.
+     * @return Which parts of the stage its path is in.
+     */
+    int flags(int i) {
+        return _map.get(HEADER + i * _entry + 8);
+    }
+
+    /**
+     * Returns the blobs of the head commit the entries hold, by path, as
+     * a read-only map that finds each path in the index when asked.
+     * @return The map.
+     */
+    Map<String, String> heads() {
+        return new Heads();
+    }
+
+    /**
+     * Reads the given entry.
+     * @param i The entry number.
+     * @return The entry.
+     */
+    Entry entry(int i) {
+        int at = HEADER + i * _entry + 8;
+        Entry e = new Entry();
+        e._flags = _map.get(at);
+        e._head = id(at + 1);
+        e._staged = id(at + 1 + Pack.ID_BYTES);
+        e._size = _map.getLong(at + 1 + 2 * Pack.ID_BYTES);
+        e._time = _map.getLong(at + 1 + 2 * Pack.ID_BYTES + 8);
+        if (_entry == ENTRY) {
+            e._inode = _map.getLong(at + 1 + 2 * Pack.ID_BYTES + 16);
+            e._work = id(at + 1 + 2 * Pack.ID_BYTES + 24);
+        }
+        return e;
+    }
+
+    /**
+     * Reads every entry, by path.
+     * @return The entries.
+     */
+    TreeMap<String, Entry> entries() {
+        TreeMap<String, Entry> result = new TreeMap<>();
+        for (int i = 0; i < _count; i += 1) {
+            result.put(path(i), entry(i));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the entry of a path with a binary search.
+     * @param path The path.
+     * @return The entry number, or -1 if the path has none.
+     */
+    int find(String path) {
+        int lo = 0;
+        int hi = _count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = path(mid).compareTo(path);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes this index again with the given entries in place of their
+     * old values, the paths of the index being left as they are: its
+     * bytes are copied with those entries written over, aside first and
+     * then renamed over it. The index must be of the current version.
+     * @param changed Maps paths of this index to their new entries.
+     * @throws IOException
+     */
+    void update(Map<String, Entry> changed) throws IOException {
+        ByteBuffer copy = ByteBuffer.allocate(_map.capacity());
+        ByteBuffer all = _map.duplicate();
+        all.clear();
+        copy.put(all);
+        for (Map.Entry<String, Entry> e : changed.entrySet()) {
+            int i = find(e.getKey());
+            if (i < 0) {
+                throw new IOException("no stage entry " + e.getKey());
+            }
+            copy.position(HEADER + i * _entry + 8);
+            putEntry(copy, e.getValue());
+        }
+        String gitlet = _file.getParent().toString();
+        Path temp = Loose.temp(gitlet);
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            out.write(copy.array());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, _file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes an index holding the given entries into the given gitlet
+     * directory, aside first and forced to disk, then renamed over the
+     * old one.
+     * @param gitlet The gitlet directory.
+     * @param entries The entries, by path.
+     * @throws IOException
+     */
+    static void write(String gitlet, TreeMap<String, Entry> entries)
+            throws IOException {
+        Path temp = Loose.temp(gitlet);
+        try (FileOutputStream out = new FileOutputStream(temp.toFile());
+             DataOutputStream x = new DataOutputStream(
+                new BufferedOutputStream(out))) {
+            x.writeInt(MAGIC);
+            x.writeInt(VERSION);
+            x.writeInt(entries.size());
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+            int offset = 0;
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                int length = e.getKey().getBytes(StandardCharsets.UTF_8)
+                        .length;
+                entry.clear();
+                entry.putInt(offset).putInt(length);
+                putEntry(entry, e.getValue());
+                x.write(entry.array());
+                offset += length;
+            }
+            for (String path : entries.keySet()) {
+                x.write(path.getBytes(StandardCharsets.UTF_8));
+            }
+            x.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, Paths.get(gitlet, FILE),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Puts the part of an entry after its path.
+     * @param buf Where to put it.
+     * @param e The entry.
+     */
+    private static void putEntry(ByteBuffer buf, Entry e) {
+        buf.put((byte) e._flags);
+        buf.put(e._head == null ? NONE : Pack.toBytes(e._head));
+        buf.put(e._staged == null ? NONE : Pack.toBytes(e._staged));
+        buf.putLong(e._size);
+        buf.putLong(e._time);
+        buf.putLong(e._inode);
+        buf.put(e._work == null ? NONE : Pack.toBytes(e._work));
+    }
+
+    /**
+     * Reads an id of an entry.
+     * @param at Where the id is.
+     * @return The hex id, or null for none.
+     */
+    private String id(int at) {
+        byte[] id = new byte[Pack.ID_BYTES];
+        ByteBuffer slice = _map.duplicate();
+        slice.position(at);
+        slice.get(id);
+        return Arrays.equals(id, NONE) ? null : Pack.toHex(id);
+    }
+
+    /**
+     * The blobs of the head commit held by the entries, by path, looked
+     * up in the index as they are asked for.
+     */
+    private class Heads extends AbstractMap<String, String> {
+        /**The number of entries of the head commit, or -1 until
+         * counted.*/
+        private int _size = -1;
+
+        @Override
+        public String get(Object key) {
+            int i = key instanceof String ? find((String) key) : -1;
+            return i < 0 || (flags(i) & HEAD) == 0
+                    ? null : id(HEADER + i * _entry + 8 + 1);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new HeadIterator();
+                }
+
+                @Override
+                public int size() {
+                    if (_size < 0) {
+                        _size = 0;
+                        for (int i = 0; i < _count; i += 1) {
+                            if ((flags(i) & HEAD) != 0) {
+                                _size += 1;
+                            }
+                        }
+                    }
+                    return _size;
+                }
+            };
+        }
+    }
+
+    /**
+     * Goes through the entries of the head commit in path order.
+     */
+    private class HeadIterator implements Iterator<Map.Entry<String, String>> {
+        /**The next entry of the head commit, or _count if none.*/
+        private int _next = skip(0);
+
+        /**
+         * Returns the first entry of the head commit from the given one.
+         * @param i The entry number.
+         * @return The entry number, or _count if none.
+         */
+        private int skip(int i) {
+            while (i < _count && (flags(i) & HEAD) == 0) {
+                i += 1;
+            }
+            return i;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _next < _count;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int i = _next;
+            _next = skip(i + 1);
+            return new AbstractMap.SimpleImmutableEntry<>(path(i),
+                    id(HEADER + i * _entry + 8 + 1));
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package gitlet;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The contents of one directory of a commit: the blobs of the files in
+ * it and the trees of the directories under it, by name. A tree is
+ * addressed by the hash of its encoding, so a commit changing one file
+ * only writes new trees for the directories on that file's path; every
+ * other subtree keeps its id and is shared with the parent commit.
+ * @author Yu Xi Gui
+ */
+public class Tree {
+    /**The folder in gitlet trees are kept in.*/
+    static final String FOLDER = ".trees";
+    /**The separator between the directories of a path.*/
+    static final char SEPARATOR = '/';
+    /**The id of the empty tree.*/
+    static final String EMPTY = new Tree().getId();
+    /**The most trees kept decoded.*/
+    static final int CACHED = 4096;
+    /**The trees decoded last, by id, shared by every reader.*/
+    private static final LinkedHashMap<String, Tree> DECODED =
+            new LinkedHashMap<String, Tree>(CACHED, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Tree> eldest) {
+                    return size() > CACHED;
+                }
+            };
+
+    /**The blobs of the files in this directory, by name.*/
+    private TreeMap<String, String> _files;
+    /**The trees of the directories in this directory, by name.*/
+    private TreeMap<String, String> _dirs;
+    /**The number of files under this tree, or -1 if not counted yet.*/
+    private int _count = -1;
+
+    /**An empty tree.*/
+    public Tree() {
+        _files = new TreeMap<>();
+        _dirs = new TreeMap<>();
+    }
+
+    /**
+     * A copy of the given tree.
+     * @param other The tree to copy.
+     */
+    private Tree(Tree other) {
+        _files = new TreeMap<>(other._files);
+        _dirs = new TreeMap<>(other._dirs);
+    }
+
+    /**
+     * Writes this tree into an encoding.
+     * @param out Where to write.
+     */
+    void encode(Codec.Out out) {
+        out.writeIds(_files);
+        out.writeIds(_dirs);
+    }
+
+    /**
+     * Reads a tree written by encode.
+     * @param in Where to read.
+     * @return The tree.
+     */
+    static Tree decode(Codec.In in) {
+        Tree t = new Tree();
+        t._files = new TreeMap<>(in.readIds());
+        t._dirs = new TreeMap<>(in.readIds());
+        return t;
+    }
+
+    /**
+     * Returns the id of this tree, the hash of its encoding.
+     * @return A string of the SHA1.
+     */
+    public String getId() {
+        Codec.Out out = new Codec.Out();
+        encode(out);
+        return Utils.sha1("tree", out.toByteArray());
+    }
+
+    /**
+     * Returns the blobs of the files in this directory, by name.
+     * @return The map, not to be changed.
+     */
+    Map<String, String> getFiles() {
+        return Collections.unmodifiableMap(_files);
+    }
+
+    /**
+     * Returns the trees of the directories in this directory, by name.
+     * @return The map, not to be changed.
+     */
+    Map<String, String> getDirs() {
+        return Collections.unmodifiableMap(_dirs);
+    }
+
+    /**
+     * Returns the blob of a file in this directory.
+     * @param name The name of the file.
+     * @return The blob id, or null if there is no such file.
+     */
+    String file(String name) {
+        return _files.get(name);
+    }
+
+    /**
+     * Returns the tree of a directory in this directory.
+     * @param name The name of the directory.
+     * @return The tree id, or null if there is no such directory.
+     */
+    String dir(String name) {
+        return _dirs.get(name);
+    }
+
+    /**
+     * Returns the number of files under this tree, counted once.
+     * @param gitlet The gitlet directory to read subtrees from.
+     * @return The count.
+     */
+    int count(String gitlet) {
+        if (_count < 0) {
+            int n = _files.size();
+            for (String sub : _dirs.values()) {
+                n += read(gitlet, sub).count(gitlet);
+            }
+            _count = n;
+        }
+        return _count;
+    }
+
+    /**
+     * Reads the tree with the given id from the repository whose gitlet
+     * directory is given. The trees read last are kept decoded and
+     * handed out again, so they must not be changed. A tree is named by
+     * its content, so one read from any repository will do.
+     * @param gitlet The gitlet directory.
+     * @param id The id of the tree, or the empty string for none.
+     * @return The tree, empty if the id is empty.
+     */
+    static Tree read(String gitlet, String id) {
+        if (id == null || id.isEmpty()) {
+            return new Tree();
+        }
+        synchronized (DECODED) {
+            Tree t = DECODED.get(id);
+            if (t != null) {
+                return t;
+            }
+        }
+        try {
+            byte[] data = ObjectStore.of(gitlet).read(FOLDER, id);
+            if (data == null) {
+                throw new IllegalArgumentException("No tree " + id);
+            }
+            Tree t = (Tree) Main.decode(data);
+            synchronized (DECODED) {
+                DECODED.put(id, t);
+            }
+            return t;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Applies changes to the tree with the given id and writes the trees
+     * that change, bottom up. Subtrees no change reaches are not read.
+     * @param id The id of the tree to change, or the empty string for an
+     *           empty tree.
+     * @param adds Maps paths, relative to this tree, to their new blobs.
+     * @param removes Paths, relative to this tree, to remove.
+     * @return The id of the changed tree.
+     */
+    static String update(String id, Map<String, String> adds,
+                         Set<String> removes) {
+        if (adds.isEmpty() && removes.isEmpty() && !id.isEmpty()) {
+            return id;
+        }
+        Tree old = read(Main.gitletDir(), id);
+        Tree t = new Tree(old);
+        HashMap<String, HashMap<String, String>> subAdds = new HashMap<>();
+        HashMap<String, HashSet<String>> subRemoves = new HashMap<>();
+        for (Map.Entry<String, String> e : adds.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf(SEPARATOR);
+            if (slash < 0) {
+                t._files.put(path, e.getValue());
+            } else {
+                subAdds.computeIfAbsent(path.substring(0, slash),
+                        k -> new HashMap<>())
+                        .put(path.substring(slash + 1), e.getValue());
+            }
+        }
+        for (String path : removes) {
+            int slash = path.indexOf(SEPARATOR);
+            if (slash < 0) {
+                t._files.remove(path);
+            } else {
+                subRemoves.computeIfAbsent(path.substring(0, slash),
+                        k -> new HashSet<>())
+                        .add(path.substring(slash + 1));
+            }
+        }
+        HashSet<String> dirs = new HashSet<>();
+        dirs.addAll(subAdds.keySet());
+        dirs.addAll(subRemoves.keySet());
+        for (String dir : dirs) {
+            String child = t._dirs.getOrDefault(dir, "");
+            if (child.isEmpty() && !subAdds.containsKey(dir)) {
+                continue;
+            }
+            String updated = update(child,
+                    subAdds.getOrDefault(dir, new HashMap<>()),
+                    subRemoves.getOrDefault(dir, new HashSet<>()));
+            if (updated.equals(EMPTY)) {
+                t._dirs.remove(dir);
+            } else {
+                t._dirs.put(dir, updated);
+            }
+        }
+        String newId = t.getId();
+        if (!newId.equals(id)) {
+            Main.writeFile(FOLDER, newId, t);
+            synchronized (DECODED) {
+                DECODED.put(newId, t);
+            }
+        }
+        return newId;
+    }
+
+    /**
+     * Copies the tree with the given id, its subtrees and their blobs
+     * from one repository to another. A tree the other repository
+     * already has is skipped whole, since everything under it must be
+     * there too.
+     * @param to The gitlet directory to copy to.
+     * @param from The gitlet directory to copy from.
+     * @param id The id of the tree.
+     * @throws IOException
+     */
+    static void copy(String to, String from, String id) throws IOException {
+        if (id.isEmpty() || ObjectStore.of(to).freshen(FOLDER, id)) {
+            return;
+        }
+        Tree t = read(from, id);
+        for (String blob : t._files.values()) {
+            Blob.copyFile(to, from, blob);
+        }
+        for (String dir : t._dirs.values()) {
+            copy(to, from, dir);
+        }
+        Main.copyObject(to, from, FOLDER, id);
+    }
+}
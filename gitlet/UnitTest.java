@@ -1,5 +1,14 @@
 package gitlet;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
 import ucb.junit.textui;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -20,6 +29,195 @@ public class UnitTest {
     public void placeholderTest() {
     }
 
+    /** Deltas rebuild their target, whether it shares much of its base,
+     *  little of it, or repeats the same bytes over and over. */
+    @Test
+    public void deltaTest() {
+        Random random = new Random(61);
+        byte[] base = new byte[100000];
+        random.nextBytes(base);
+        byte[] target = Arrays.copyOf(base, 120000);
+        target[10] ^= 1;
+        System.arraycopy(base, 500, target, 100000, 20000);
+        byte[] delta = Delta.create(base, target);
+        assertArrayEquals(target, Delta.apply(base, delta));
+        assertTrue(delta.length < target.length / 10);
+
+        byte[] other = new byte[3000];
+        random.nextBytes(other);
+        assertArrayEquals(other, Delta.apply(base,
+                Delta.create(base, other)));
+        assertArrayEquals(new byte[0], Delta.apply(base,
+                Delta.create(base, new byte[0])));
+
+        byte[] same = new byte[4 << 20];
+        Arrays.fill(same, (byte) 'a');
+        byte[] changed = same.clone();
+        changed[same.length / 2] = 'b';
+        delta = Delta.create(same, changed);
+        assertArrayEquals(changed, Delta.apply(same, delta));
+        assertTrue(delta.length < 100);
+    }
+
+    /** Objects and varints read back as they were written. */
+    @Test
+    public void codecTest() {
+        long[] numbers = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE,
+            Long.MAX_VALUE};
+        Codec.Out out = new Codec.Out();
+        for (long n : numbers) {
+            out.writeVarint(n);
+        }
+        Codec.In in = new Codec.In(out.toByteArray());
+        for (long n : numbers) {
+            assertEquals(n, in.readVarint());
+        }
+
+        byte[] content = "some content\n".getBytes();
+        Blob blob = (Blob) Codec.decode(Codec.encode(new Blob(content)));
+        assertArrayEquals(content, blob.getContent());
+
+        Commit parent = new Commit("", "", 0, "initial commit", "");
+        Commit commit = new Commit(parent.getId(), "", 1234567L,
+                "a message", Blob.idOf(content));
+        Commit read = (Commit) Codec.decode(Codec.encode(commit));
+        assertEquals(commit.getId(), read.getId());
+        assertEquals(parent.getId(), read.getParentOne());
+        assertEquals(1234567L, read.getMillis());
+        assertEquals("a message", read.getCommitmessage());
+        assertEquals(Blob.idOf(content), read.getTreeId());
+    }
+
+    /** Sets and maps of ids keep every id through many doublings. */
+    @Test
+    public void idSetTest() {
+        Random random = new Random(62);
+        IdSet set = new IdSet();
+        IdMap<Integer> map = new IdMap<>();
+        IdIntMap ints = new IdIntMap();
+        List<ObjectId> ids = new ArrayList<>();
+        for (int i = 0; i < 50000; i += 1) {
+            ObjectId id = new ObjectId(random.nextLong(), random.nextLong(),
+                    random.nextInt());
+            ids.add(id);
+            assertTrue(set.add(id));
+            map.put(id, i);
+            ints.put(id, i);
+        }
+        assertFalse(set.add(ids.get(0)));
+        assertEquals(ids.size(), set.size());
+        assertEquals(ids.size(), map.size());
+        assertEquals(ids.size(), ints.size());
+        for (int i = 0; i < ids.size(); i += 1) {
+            assertTrue(set.contains(ids.get(i)));
+            assertEquals(Integer.valueOf(i), map.get(ids.get(i)));
+            assertEquals(i, ints.get(ids.get(i)));
+        }
+        assertFalse(set.contains(new ObjectId(1, 2, 3)));
+        assertNull(map.get(new ObjectId(1, 2, 3)));
+        assertEquals(-1, ints.get(new ObjectId(1, 2, 3)));
+        HashSet<ObjectId> seen = new HashSet<>();
+        for (ObjectId id : set) {
+            seen.add(id);
+        }
+        assertEquals(new HashSet<>(ids), seen);
+    }
+
+    /** Chunks stay within their bounds, and an edit near the start of
+     *  a file leaves the cuts after it where they were. */
+    @Test
+    public void chunkCutTest() {
+        byte[] data = new byte[2 << 20];
+        new Random(63).nextBytes(data);
+        List<Integer> cuts = cuts(data);
+        for (int i = 1; i < cuts.size(); i += 1) {
+            int length = cuts.get(i) - cuts.get(i - 1);
+            assertTrue(length <= Chunks.MAX);
+            assertTrue(length >= Chunks.MIN || i == cuts.size() - 1);
+        }
+        assertEquals(Integer.valueOf(data.length),
+                cuts.get(cuts.size() - 1));
+        assertEquals(7, Chunks.cut(data, 7));
+
+        byte[] edited = new byte[data.length + 100];
+        System.arraycopy(data, 0, edited, 100, data.length);
+        HashSet<Integer> shifted = new HashSet<>();
+        for (int cut : cuts(edited)) {
+            shifted.add(cut - 100);
+        }
+        int kept = 0;
+        for (int cut : cuts) {
+            if (shifted.contains(cut)) {
+                kept += 1;
+            }
+        }
+        assertTrue(kept >= cuts.size() - 2);
+    }
+
+    /** A blob's content and the blob decoded are kept apart in the
+     *  object cache, and a commit weighs more than its id. */
+    @Test
+    public void objectCacheTest() {
+        byte[] content = "cached\n".getBytes();
+        String id = Blob.idOf(content);
+        ObjectCache.put(".blobs", id, new Blob(content));
+        ObjectCache.put(ObjectCache.CONTENTS, id, content);
+        assertTrue(ObjectCache.get(".blobs", id) instanceof Blob);
+        assertArrayEquals(content,
+                (byte[]) ObjectCache.get(ObjectCache.CONTENTS, id));
+        Commit c = new Commit("", "", 0, "a longer commit message", "");
+        assertTrue(ObjectCache.weigh(c) > 2 * c.getId().length()
+                + "a longer commit message".length());
+    }
+
+    /** Returns where the chunks of DATA end, cut as Chunks.store does.
+     *  @param data The content of a file.
+     *  @return The end of each chunk, in order, after a leading 0. */
+    private static List<Integer> cuts(byte[] data) {
+        List<Integer> result = new ArrayList<>();
+        int at = 0;
+        result.add(at);
+        while (at < data.length) {
+            int n = Math.min(data.length - at, Chunks.MAX);
+            at += Chunks.cut(Arrays.copyOfRange(data, at, at + n), n);
+            result.add(at);
+        }
+        return result;
+    }
+
+    /** Runs commands one after another in this process with the
+     *  memory store, which must leave nothing on disk but the files
+     *  checked out. */
+    @Test
+    public void memoryStoreTest() throws IOException {
+        String cwd = Main.CWD;
+        Path dir = Files.createTempDirectory("gitlet");
+        Path file = dir.resolve("f.txt");
+        System.setProperty(ObjectStore.PROPERTY, "memory");
+        Main.CWD = dir.toString();
+        try {
+            Main.run("init");
+            Files.write(file, "one\n".getBytes());
+            Main.run("add", "f.txt");
+            Main.run("commit", "one");
+            Files.write(file, "two\n".getBytes());
+            Main.run("add", "f.txt");
+            Main.run("commit", "two");
+            Main.run("branch", "other");
+            Main.run("reset", Main.getTree().getLastCommit()
+                    .getParentOne());
+            assertEquals("one\n", new String(Files.readAllBytes(file)));
+            Main.run("checkout", "other");
+            assertEquals("two\n", new String(Files.readAllBytes(file)));
+            assertFalse(Files.exists(dir.resolve(".gitlet")));
+        } finally {
+            System.clearProperty(ObjectStore.PROPERTY);
+            Main.CWD = cwd;
+            Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
 }
 
 
@@ -0,0 +1,215 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The working trees of a repository. The one made by init keeps the
+ * repository itself in its gitlet directory; the others, made by
+ * worktree add, have a gitlet directory of their own holding only
+ * their stage, their head in the HEAD file, and the path of the
+ * repository's gitlet directory in the commondir file. Objects, the
+ * branches and the remotes are shared: every store is opened on the
+ * repository's directory, and tree.bin is read from it, with the head
+ * of the working tree put in, and written back with the head of the
+ * first working tree left as it was.
+ *
+ * The repository lists the other working trees in its worktrees file,
+ * so that gc keeps what is staged in any of them and a branch is
+ * checked out in one working tree at a time.
+ * @author Yu Xi Gui
+ */
+class Worktree {
+    /**The file naming the gitlet directory of the repository.*/
+    static final String COMMONDIR = "commondir";
+    /**The file naming the branch a working tree has checked out.*/
+    static final String HEAD = "HEAD";
+    /**The file of the repository listing its other working trees.*/
+    static final String LIST = "worktrees";
+
+    /**The gitlet directories of the repositories, by gitlet directory.*/
+    private static HashMap<String, String> _common = new HashMap<>();
+
+    /**
+     * Returns the gitlet directory of the repository of a working tree.
+     * @param gitlet The gitlet directory of the working tree.
+     * @return The gitlet directory of the repository, which is GITLET
+     *         itself for the first working tree.
+     */
+    static synchronized String common(String gitlet) {
+        return _common.computeIfAbsent(gitlet, g -> {
+            Path file = Paths.get(g, COMMONDIR);
+            if (!Files.exists(file)) {
+                return g;
+            }
+            try {
+                return new String(Files.readAllBytes(file),
+                        StandardCharsets.UTF_8).trim();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Tells if a gitlet directory is that of a working tree made by
+     * worktree add.
+     * @param gitlet The gitlet directory.
+     * @return True if it is.
+     */
+    static boolean isLinked(String gitlet) {
+        return !common(gitlet).equals(gitlet);
+    }
+
+    /**
+     * Returns the gitlet directories of every working tree of the
+     * repository, the first one first. Working trees deleted since
+     * they were made are left out.
+     * @param gitlet The gitlet directory of any of them.
+     * @return The gitlet directories.
+     * @throws IOException
+     */
+    static List<String> all(String gitlet) throws IOException {
+        String common = common(gitlet);
+        ArrayList<String> result = new ArrayList<>();
+        result.add(common);
+        Path list = Paths.get(common, LIST);
+        if (Files.exists(list)) {
+            for (String line : Files.readAllLines(list,
+                    StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()
+                        && Files.exists(Paths.get(line, COMMONDIR))) {
+                    result.add(line);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the commit tree as a working tree sees it: the branches and
+     * remotes of the repository, with the working tree's own head.
+     * @param gitlet The gitlet directory of the working tree.
+     * @return The commit tree.
+     * @throws IOException
+     */
+    static CommitTree readTree(String gitlet) throws IOException {
+        CommitTree tree = Main.readTree(common(gitlet));
+        if (tree != null && isLinked(gitlet)) {
+            tree.setHead(head(gitlet));
+        }
+        return tree;
+    }
+
+    /**
+     * Writes the commit tree of a working tree back: its branches and
+     * remotes to the repository and its head to the working tree. The
+     * repository's tree.bin is read again as it is saved, so commands
+     * in other working trees saving at the same time keep their
+     * changes.
+     * @param gitlet The gitlet directory of the working tree.
+     * @param tree The commit tree.
+     * @throws IOException
+     */
+    static void saveTree(String gitlet, CommitTree tree) throws IOException {
+        tree.save(common(gitlet), !isLinked(gitlet));
+        if (isLinked(gitlet)) {
+            Main.writeAtomically(gitlet, Paths.get(gitlet, HEAD),
+                    tree.getHead().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns the branch a working tree has checked out, as saved.
+     * @param gitlet The gitlet directory of the working tree.
+     * @return The name of the branch.
+     * @throws IOException
+     */
+    static String head(String gitlet) throws IOException {
+        if (!isLinked(gitlet)) {
+            return Main.readTree(gitlet).getHead();
+        }
+        return new String(Files.readAllBytes(Paths.get(gitlet, HEAD)),
+                StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Tells if a branch is checked out in a working tree other than the
+     * given one.
+     * @param gitlet The gitlet directory of the working tree asking.
+     * @param branch The name of the branch.
+     * @return True if another working tree has it checked out.
+     * @throws IOException
+     */
+    static boolean checkedOutElsewhere(String gitlet, String branch)
+            throws IOException {
+        for (String other : all(gitlet)) {
+            if (!other.equals(gitlet) && head(other).equals(branch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does the worktree add command: makes a working tree in the given
+     * directory with the given branch checked out, sharing the objects
+     * and branches of the repository in the cur directory.
+     * @param dir The directory of the new working tree.
+     * @param branch The branch to check out in it.
+     * @throws IOException
+     */
+    static void add(String dir, String branch) throws IOException {
+        String gitlet = Main.gitletDir();
+        CommitTree tree = Main.getTree();
+        Path root = Paths.get(Main.CWD).resolve(dir).toAbsolutePath()
+                .normalize();
+        Path own = root.resolve(".gitlet");
+        if (Files.exists(own)) {
+            System.out.println("A Gitlet version-control system "
+                    + "already exists in that directory.");
+            return;
+        }
+        if (!tree.getBr().containsKey(branch)) {
+            System.out.println("No such branch exists.");
+            return;
+        }
+        if (tree.getHead().equals(branch)
+                || checkedOutElsewhere(gitlet, branch)) {
+            System.out.println("That branch is already checked out.");
+            return;
+        }
+        String common = Paths.get(common(gitlet)).toAbsolutePath()
+                .normalize().toString();
+        Files.createDirectories(own);
+        String ownDir = own.toString();
+        Main.writeAtomically(ownDir, own.resolve(COMMONDIR),
+                common.getBytes(StandardCharsets.UTF_8));
+        Main.writeAtomically(ownDir, own.resolve(HEAD),
+                branch.getBytes(StandardCharsets.UTF_8));
+        Commit c = (Commit) Main.readF(".commits", tree.getBr().get(branch));
+        for (Map.Entry<String, String> e : c.getBlobs().entrySet()) {
+            Blob.writeTo(gitlet, ".blobs", e.getValue(),
+                    root.resolve(e.getKey()));
+        }
+        Stage stage = new Stage();
+        stage.setBlobs(c);
+        stage.save(ownDir);
+        StringBuilder list = new StringBuilder();
+        Path listFile = Paths.get(common, LIST);
+        if (Files.exists(listFile)) {
+            list.append(new String(Files.readAllBytes(listFile),
+                    StandardCharsets.UTF_8));
+        }
+        list.append(ownDir).append('\n');
+        Main.writeAtomically(common, listFile,
+                list.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
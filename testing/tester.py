@@ -3,7 +3,7 @@ from subprocess import \
      check_output, PIPE, STDOUT, DEVNULL, CalledProcessError, TimeoutExpired
 from os.path import abspath, basename, dirname, exists, join, splitext
 from getopt import getopt, GetoptError
-from os import chdir, environ, getcwd, mkdir, remove, access, W_OK
+from os import chdir, environ, getcwd, makedirs, mkdir, remove, access, W_OK
 from shutil import copyfile, rmtree
 from math import log
 
@@ -45,8 +45,12 @@ The instructions each have one of the following forms:
           intended to let you set up remote repositories.
    T N    Set the timeout for gitlet commands in the rest of this test to N
           seconds.
+   J FLAGS
+          Pass FLAGS, such as -Dname=value, to java in the gitlet commands
+          in the rest of this test.
    + NAME F
-          Copy the contents of src/F into a file named NAME.
+          Copy the contents of src/F into a file named NAME, creating the
+          directories NAME is in if they are missing.
    - NAME
           Delete the file named NAME.
    > COMMAND OPERANDS
@@ -140,16 +144,20 @@ def doDelete(name, dir):
 def doCopy(to1, src, dir):
     try:
         doDelete(to1, dir)
+        makedirs(dirname(join(dir, to1)), exist_ok=True)
         copyfile(join(src_dir, src), join(dir, to1))
     except OSError:
         raise ValueError("file {} could not be copied to {}".format(src, to1))
 
-def doExecute(cmnd, dir, timeout):
+def doExecute(cmnd, dir, timeout, flags=""):
     here = getcwd()
     out = ""
     try:
         chdir(dir)
         full_cmnd = "{} {}".format(GITLET_COMMAND, cmnd)
+        if flags:
+            full_cmnd = full_cmnd.replace(" gitlet.Main",
+                                          " {} gitlet.Main".format(flags), 1)
         out = check_output(full_cmnd, shell=True, universal_newlines=True,
                            stdin=DEVNULL, stderr=STDOUT, timeout=timeout)
         return "OK", out
@@ -242,6 +250,7 @@ def doTest(test):
     if verbose:
         print("Testing directory: {}".format(tmpdir))
     timeout = TIMEOUT
+    flags = ""
     defns = {}
 
     def do_substs(L):
@@ -296,6 +305,8 @@ def doTest(test):
                     timeout = float(Group(1))
                 except:
                     ValueError("bad time: {}".format(line))
+            elif Match(r'J\s*(.*\S)', line):
+                flags = Group(1)
             elif Match(r'\+\s*(\S+)\s+(\S+)', line):
                 doCopy(Group(1), Group(2), cdir)
             elif Match(r'-\s*(\S+)', line):
@@ -313,7 +324,7 @@ def doTest(test):
                         is_regexp = Group(1)
                         break
                     expected.append(do_substs(L))
-                msg, out = doExecute(cmnd, cdir, timeout)
+                msg, out = doExecute(cmnd, cdir, timeout, flags)
                 if verbose:
                     if out:
                         print(re.sub(r'(?m)^', '- ', chop_nl(out)))